@@ -0,0 +1,175 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.meecrowave.Meecrowave;
+
+/**
+ * Starts the application (with {@link StubWebRenderer}) for a benchmark and provides servlet stubs
+ * to call the beans without going through the network.
+ */
+final class BenchmarkContainer implements AutoCloseable {
+    private final Meecrowave meecrowave;
+    private final Path directory;
+    private AutoCloseable injection;
+
+    /**
+     * @param configuration system properties set before the container starts, the beans read them once.
+     */
+    BenchmarkContainer(final Map<String, String> configuration) {
+        try {
+            directory = Files.createTempDirectory("website-rendering-benchmark");
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        System.setProperty("rmannibucau.website.rendering.cache.directory", directory.toAbsolutePath().toString());
+        configuration.forEach(System::setProperty);
+        meecrowave = new Meecrowave(new Meecrowave.Builder().randomHttpPort()).bake();
+    }
+
+    <T> T inject(final T instance) {
+        injection = meecrowave.inject(instance);
+        return instance;
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            if (injection != null) {
+                injection.close();
+            }
+            meecrowave.close();
+        } finally {
+            try (final Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    static HttpServletRequest request(final String uri, final String acceptEncoding) {
+        return HttpServletRequest.class.cast(Proxy.newProxyInstance(
+                BenchmarkContainer.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getMethod":
+                            return "GET";
+                        case "getScheme":
+                            return "http";
+                        case "getServerName":
+                            return "localhost";
+                        case "getServerPort":
+                            return 8080;
+                        case "getContextPath":
+                            return "";
+                        case "getRequestURI":
+                            return uri;
+                        case "getHeader":
+                            return "Accept-Encoding".equalsIgnoreCase(String.valueOf(args[0])) ? acceptEncoding : null;
+                        case "getDateHeader": // absent header
+                        case "getIntHeader":
+                        case "getContentLength":
+                            return -1;
+                        case "getContentLengthLong":
+                            return -1L;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                }));
+    }
+
+    // discards the page, only the serving cost is measured
+    static HttpServletResponse response() {
+        final PrintWriter writer = new PrintWriter(new Writer() {
+            @Override
+            public void write(final char[] buffer, final int offset, final int length) {
+                // no-op
+            }
+
+            @Override
+            public void flush() {
+                // no-op
+            }
+
+            @Override
+            public void close() {
+                // no-op
+            }
+        });
+        final ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(final WriteListener writeListener) {
+                // no-op
+            }
+
+            @Override
+            public void write(final int b) {
+                // no-op
+            }
+
+            @Override
+            public void write(final byte[] buffer, final int offset, final int length) {
+                // no-op
+            }
+        };
+        return HttpServletResponse.class.cast(Proxy.newProxyInstance(
+                BenchmarkContainer.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getWriter":
+                            return writer;
+                        case "getOutputStream":
+                            return stream;
+                        case "isCommitted":
+                            return false;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                }));
+    }
+
+    // a proxy returning null for a primitive throws a NullPointerException
+    private static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == char.class) {
+            return '\0';
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.;
+        }
+        if (type == float.class) {
+            return 0f;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contended reads and writes of the cache for each storage mode.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@State(Scope.Benchmark)
+public class DefaultHtmlCacheBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"jcache", "file"})
+    private String mode;
+
+    @Inject
+    private HtmlCache cache;
+
+    private BenchmarkContainer container;
+    private String[] keys;
+
+    @Setup(Level.Trial)
+    public void start() {
+        container = new BenchmarkContainer(singletonMap("rmannibucau.website.rendering.cache.mode", mode));
+        container.inject(this);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "http://localhost:8080/page/" + i;
+            cache.put(keys[i], StubWebRenderer.PAGE);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        container.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public HtmlCache.Entry get() {
+        return cache.getEntry(nextKey());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean put() {
+        return cache.put(nextKey(), StubWebRenderer.PAGE);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public HtmlCache.Entry mixedGet() {
+        return cache.getEntry(nextKey());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public boolean mixedPut() {
+        return cache.put(nextKey(), StubWebRenderer.PAGE);
+    }
+
+    private String nextKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEYS)];
+    }
+}
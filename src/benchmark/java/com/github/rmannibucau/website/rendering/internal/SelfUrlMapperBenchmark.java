@@ -0,0 +1,49 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache key computation, done for each filtered request.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@State(Scope.Benchmark)
+public class SelfUrlMapperBenchmark {
+    @Inject
+    private SelfUrlMapper mapper;
+
+    private BenchmarkContainer container;
+    private HttpServletRequest request;
+
+    @Setup(Level.Trial)
+    public void start() {
+        container = new BenchmarkContainer(emptyMap());
+        container.inject(this);
+        request = BenchmarkContainer.request("/blog/2018/07/a-post.html", null);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        container.close();
+    }
+
+    @Benchmark
+    public String toAbsoluteUrl() {
+        return mapper.toAbsoluteUrl(request);
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serving path of the filter, the renderer is {@link StubWebRenderer}.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = SECONDS)
+@State(Scope.Benchmark)
+public class ServerRenderingFilterBenchmark {
+    private static final String HIT = "/hit.html";
+    private static final String MISS = "/miss.html";
+    private static final FilterChain CHAIN = (request, response) -> {
+        // the application would serve the unrendered page
+    };
+
+    @Inject
+    private ServerRenderingFilter filter;
+
+    @Inject
+    private HtmlCache cache;
+
+    private BenchmarkContainer container;
+    private HttpServletRequest hitRequest;
+    private HttpServletRequest gzipHitRequest;
+    private HttpServletRequest missRequest;
+    private HttpServletResponse response;
+    private String missUrl;
+
+    @Setup(Level.Trial)
+    public void start() {
+        container = new BenchmarkContainer(emptyMap());
+        container.inject(this);
+        filter.init(null);
+        hitRequest = BenchmarkContainer.request(HIT, null);
+        gzipHitRequest = BenchmarkContainer.request(HIT, "gzip, deflate");
+        missRequest = BenchmarkContainer.request(MISS, null);
+        response = BenchmarkContainer.response();
+        missUrl = "http://localhost:8080" + MISS;
+        cache.put("http://localhost:8080" + HIT, StubWebRenderer.PAGE);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        filter.destroy();
+        container.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void hit() throws IOException, ServletException {
+        filter.doFilter(hitRequest, response, CHAIN);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void gzipHit() throws IOException, ServletException {
+        filter.doFilter(gzipHitRequest, response, CHAIN);
+    }
+
+    // includes the invalidation of the page the previous invocation rendered
+    @Benchmark
+    public void miss() throws IOException, ServletException {
+        cache.invalidate(missUrl);
+        filter.doFilter(missRequest, response, CHAIN);
+    }
+}
@@ -0,0 +1,46 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static javax.interceptor.Interceptor.Priority.APPLICATION;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Alternative;
+
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
+
+/**
+ * Renders instantly a static page so the benchmarks measure the serving path and not a browser.
+ */
+@Alternative
+@Priority(APPLICATION)
+@ApplicationScoped
+public class StubWebRenderer implements WebRenderer {
+    static final String PAGE;
+
+    static {
+        final StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Benchmark</title></head><body>");
+        for (int i = 0; i < 200; i++) { // ~10kB, a small real page
+            page.append("<p class=\"paragraph\">Rendered paragraph number ").append(i).append("</p>\n");
+        }
+        PAGE = page.append("</body></html>").toString();
+    }
+
+    @Override
+    public <T> void withDriver(final Class<T> expectedApi, final Consumer<T> consumer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String capture(final String url) {
+        return PAGE;
+    }
+
+    @Override
+    public CompletionStage<String> captureAsync(final String url) {
+        return CompletableFuture.completedFuture(PAGE);
+    }
+}
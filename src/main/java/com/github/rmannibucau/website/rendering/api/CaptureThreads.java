@@ -0,0 +1,29 @@
+package com.github.rmannibucau.website.rendering.api;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads running the blocking captures of the renderers not overriding {@link WebRenderer#captureAsync(String)},
+ * a capture can last seconds so they must not run in the common pool. Idle threads are released after a minute.
+ */
+final class CaptureThreads {
+    private CaptureThreads() {
+        // no-op
+    }
+
+    static Executor executor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder { // created on first use only
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, WebRenderer.class.getSimpleName() + "-capture-" + COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.rmannibucau.website.rendering.api;
+
+import java.util.Collection;
+
+/**
+ * Invalidates several cached pages at once, the keys are the absolute urls of the pages.
+ * Depending the configuration the pages are removed or rendered again (and served until the new version is cached).
+ */
+public interface PageInvalidator {
+    /**
+     * @param prefix the beginning of the urls to invalidate, for instance {@code https://app.com/products/}.
+     * @return the invalidated urls.
+     */
+    Collection<String> invalidateByPrefix(String prefix);
+
+    /**
+     * @param pattern a glob matching the urls to invalidate, {@code *} matches any sequence and {@code ?} any character.
+     * @return the invalidated urls.
+     */
+    Collection<String> invalidateByPattern(String pattern);
+
+    /**
+     * @param tag a tag of the pages to invalidate, see {@code rmannibucau.website.rendering.cache.tags.meta}.
+     * @return the invalidated urls.
+     */
+    Collection<String> invalidateByTag(String tag);
+}
@@ -1,5 +1,13 @@
 package com.github.rmannibucau.website.rendering.api;
 
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toMap;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
 
 /**
@@ -22,4 +30,32 @@ public interface WebRenderer {
      * @return the HTML of the captured page.
      */
     String capture(String url);
+
+    /**
+     * Capture a public page without blocking the caller,
+     * the capture is executed as soon as a renderer instance is free.
+     * Default implementation runs {@link #capture(String)} in a dedicated thread (not the common pool),
+     * renderers with a pool of instances should override it.
+     *
+     * @param url the url to capture.
+     * @return the HTML of the captured page once available.
+     */
+    default CompletionStage<String> captureAsync(final String url) {
+        return CompletableFuture.supplyAsync(() -> capture(url), CaptureThreads.executor());
+    }
+
+    /**
+     * Capture a set of public pages, captures are spread over the available renderer instances.
+     *
+     * @param urls the urls to capture.
+     * @return the HTML of the captured pages per url, it fails if any capture fails.
+     */
+    default CompletionStage<Map<String, String>> captureAll(final Collection<String> urls) {
+        final Map<String, CompletableFuture<String>> captures = urls.stream()
+                .distinct()
+                .collect(toMap(identity(), url -> captureAsync(url).toCompletableFuture(), (a, b) -> a, LinkedHashMap::new));
+        return CompletableFuture.allOf(captures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> captures.entrySet().stream()
+                        .collect(toMap(Map.Entry::getKey, e -> e.getValue().join(), (a, b) -> a, LinkedHashMap::new)));
+    }
 }
@@ -0,0 +1,432 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+import com.github.rmannibucau.website.rendering.spi.RenderingLease;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Renders a list of pages (configured or from a sitemap) in background at startup
+ * so the first visitors don't get the unrendered pages.
+ */
+@ApplicationScoped
+public class CacheWarmer {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class.getName());
+    private static final int MAX_SITEMAP_DEPTH = 3;
+
+    @Inject
+    private WebRenderer renderer;
+
+    @Inject
+    private HtmlCache cache;
+
+    @Inject
+    private HtmlPostProcessors postProcessors;
+
+    @Inject
+    private RenderingMetrics metrics;
+
+    @Inject
+    private RenderingLease lease;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.sitemap")
+    private Optional<String> sitemap;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.urls")
+    private Optional<String> urls;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.file")
+    private Optional<String> file;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.concurrency")
+    private Optional<Integer> concurrency;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.count", defaultValue = "1")
+    private Integer phantomJsInstances;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.pages", defaultValue = "1")
+    private Integer phantomJsPages;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.rate", defaultValue = "0")
+    private Double rate;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.delay", defaultValue = "0")
+    private Long delay;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.timeout", defaultValue = "18000")
+    private Long timeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.warmup.refresh", defaultValue = "false")
+    private Boolean refresh;
+
+    private ScheduledExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicInteger total = new AtomicInteger();
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    void onStart(@Observes @Initialized(ApplicationScoped.class) final Object init) {
+        if (sitemap.isPresent() || urls.isPresent() || file.isPresent()) {
+            // delayed to let the server accept the renderer requests
+            getExecutor().schedule(() -> {
+                try {
+                    warmUp(findUrls()).whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            LOGGER.log(WARNING, "Warm-up failed: " + error.getMessage(), error);
+                        }
+                    });
+                } catch (final RuntimeException re) {
+                    LOGGER.log(WARNING, "Warm-up failed: " + re.getMessage(), re);
+                }
+            }, delay, MILLISECONDS);
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        metrics.gauge("warmup.running", () -> running.get() ? 1 : 0);
+        metrics.gauge("warmup.total", total::get);
+        metrics.gauge("warmup.rendered", rendered::sum);
+        metrics.gauge("warmup.skipped", skipped::sum);
+        metrics.gauge("warmup.failed", failed::sum);
+    }
+
+    @PreDestroy
+    private synchronized void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public long getRendered() {
+        return rendered.sum();
+    }
+
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Renders and caches pages, a single warm-up runs at a time.
+     *
+     * @param pages the absolute urls to render, they must match the urls the filter caches the pages with.
+     * @return a future completed once all the pages are processed.
+     */
+    public CompletableFuture<Void> warmUp(final Collection<String> pages) {
+        if (!running.compareAndSet(false, true)) {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            result.completeExceptionally(new IllegalStateException("A warm-up is already running"));
+            return result;
+        }
+        total.set(pages.size());
+        rendered.reset();
+        skipped.reset();
+        failed.reset();
+        return CompletableFuture.runAsync(() -> {
+            try {
+                doWarmUp(pages);
+            } finally {
+                running.set(false);
+            }
+        }, getExecutor());
+    }
+
+    private void doWarmUp(final Collection<String> pages) {
+        final int permits = Math.max(1, concurrency.orElse(phantomJsInstances * phantomJsPages));
+        final Semaphore inFlight = new Semaphore(permits);
+        final long interval = rate > 0 ? (long) (SECONDS.toNanos(1) / rate) : 0;
+        final int progressStep = Math.max(1, pages.size() / 10);
+        final AtomicInteger done = new AtomicInteger();
+        final long start = System.nanoTime();
+        LOGGER.info("Warming up " + pages.size() + " pages");
+
+        long next = System.nanoTime();
+        for (final String url : pages) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (!refresh && cache.getEntry(url) != null) {
+                skipped.increment();
+                onDone(done, progressStep, pages.size());
+                continue;
+            }
+            try {
+                if (interval > 0) {
+                    final long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        NANOSECONDS.sleep(wait);
+                    }
+                    next = Math.max(next, System.nanoTime() - interval) + interval;
+                }
+                inFlight.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            // leased once it can start so the lease doesn't expire while waiting, then the page can have been stored meanwhile
+            final boolean leased = lease.tryAcquire(url);
+            if (!leased || (!refresh && cache.getEntry(url) != null)) { // another node rendered it or is rendering it
+                if (leased) {
+                    releaseLease(url);
+                }
+                inFlight.release();
+                skipped.increment();
+                onDone(done, progressStep, pages.size());
+                continue;
+            }
+            render(url, refresh).whenComplete((html, error) -> {
+                releaseLease(url);
+                if (error == null) {
+                    rendered.increment();
+                } else {
+                    failed.increment();
+                    LOGGER.log(FINE, "Can't warm up " + url + ": " + error.getMessage(), error);
+                }
+                inFlight.release();
+                onDone(done, progressStep, pages.size());
+            });
+        }
+        try {
+            inFlight.acquire(permits); // wait for the last renderings
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.info("Warm-up done in " + NANOSECONDS.toMillis(System.nanoTime() - start) + "ms: " + getRendered() + " rendered, "
+                + getSkipped() + " already cached, " + getFailed() + " failed");
+    }
+
+    // the lease expires anyway so a failure must not block the warm-up
+    private void releaseLease(final String url) {
+        try {
+            lease.release(url);
+        } catch (final RuntimeException re) {
+            LOGGER.log(FINE, "Can't release the rendering lease of " + url + ": " + re.getMessage(), re);
+        }
+    }
+
+    /**
+     * Renders again cached pages and replaces them so they are served until the new version is there,
+     * the pages which can't be rendered are invalidated. It doesn't block any thread and can run during a warm-up.
+     *
+     * @param pages the absolute urls of the pages to render.
+     * @return a future completed once all the pages are processed.
+     */
+    public CompletableFuture<Void> refresh(final Collection<String> pages) {
+        final Queue<String> remaining = new ConcurrentLinkedQueue<>(pages);
+        final int workers = Math.max(1, Math.min(pages.size(), concurrency.orElse(phantomJsInstances * phantomJsPages)));
+        return CompletableFuture.allOf(IntStream.range(0, workers)
+                .mapToObj(i -> refreshNext(remaining))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    // each worker renders a page at a time, the next one is taken from another thread to not stack the completions
+    private CompletableFuture<Void> refreshNext(final Queue<String> remaining) {
+        String url;
+        while ((url = remaining.poll()) != null && !lease.tryAcquire(url)) {
+            invalidate(url); // another node renders it, maybe the outdated version
+        }
+        if (url == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final String page = url;
+        return render(page, true)
+                .handle((html, error) -> {
+                    releaseLease(page);
+                    if (error != null) {
+                        LOGGER.log(FINE, "Can't refresh " + page + ", invalidating it: " + error.getMessage(), error);
+                        invalidate(page);
+                    }
+                    return null;
+                })
+                .thenComposeAsync(ignored -> refreshNext(remaining), getExecutor());
+    }
+
+    private void invalidate(final String url) {
+        try {
+            cache.invalidate(url);
+        } catch (final RuntimeException re) {
+            LOGGER.log(WARNING, "Can't invalidate " + url + ": " + re.getMessage(), re);
+        }
+    }
+
+    // completes once the renderer is done with the page, even after the timeout, so the callers don't
+    // give it more pages than the concurrency; a page rendered too late is not cached
+    private CompletableFuture<String> render(final String url, final boolean replace) {
+        final long start = System.nanoTime();
+        final CompletableFuture<String> capture;
+        try {
+            capture = renderer.captureAsync(url).toCompletableFuture();
+        } catch (final RuntimeException re) {
+            final CompletableFuture<String> failure = new CompletableFuture<>();
+            failure.completeExceptionally(re);
+            return failure;
+        }
+        return capture.thenApply(html -> {
+            if (System.nanoTime() - start > MILLISECONDS.toNanos(timeout)) {
+                throw new CompletionException(new TimeoutException("Rendering of " + url + " timed out after " + timeout + "ms"));
+            }
+            final String page = postProcessors.process(url, html);
+            if (replace) {
+                cache.put(url, page);
+            } else {
+                cache.putIfAbsent(url, page);
+            }
+            return page;
+        });
+    }
+
+    private void onDone(final AtomicInteger done, final int step, final int size) {
+        final int current = done.incrementAndGet();
+        if (current % step == 0 && current != size) {
+            LOGGER.info("Warm-up progress: " + current + "/" + size + " (" + getFailed() + " failed)");
+        }
+    }
+
+    Collection<String> findUrls() {
+        final Collection<String> pages = new LinkedHashSet<>();
+        urls.ifPresent(value -> Stream.of(value.split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .forEach(pages::add));
+        file.ifPresent(path -> {
+            try {
+                Files.readAllLines(new File(path).toPath(), StandardCharsets.UTF_8).stream()
+                        .map(String::trim)
+                        .filter(it -> !it.isEmpty() && !it.startsWith("#"))
+                        .forEach(pages::add);
+            } catch (final IOException e) {
+                throw new IllegalArgumentException("Can't read " + path, e);
+            }
+        });
+        sitemap.ifPresent(location -> readSitemap(location, pages, 0));
+        return pages;
+    }
+
+    // supports sitemap indexes (nested sitemaps) and gzipped sitemaps
+    private void readSitemap(final String location, final Collection<String> pages, final int depth) {
+        if (depth > MAX_SITEMAP_DEPTH) {
+            LOGGER.warning("Ignoring " + location + ", too many nested sitemaps");
+            return;
+        }
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        final Collection<String> nested = new LinkedHashSet<>();
+        try (final InputStream stream = openSitemap(location)) {
+            final XMLStreamReader reader = factory.createXMLStreamReader(stream);
+            try {
+                boolean inSitemap = false;
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            if ("sitemap".equals(reader.getLocalName())) {
+                                inSitemap = true;
+                            } else if ("loc".equals(reader.getLocalName())) {
+                                final String loc = reader.getElementText().trim();
+                                if (!loc.isEmpty()) {
+                                    (inSitemap ? nested : pages).add(loc);
+                                }
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if ("sitemap".equals(reader.getLocalName())) {
+                                inSitemap = false;
+                            }
+                            break;
+                        default:
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final IOException | XMLStreamException e) {
+            throw new IllegalArgumentException("Can't read sitemap " + location, e);
+        }
+        nested.forEach(it -> readSitemap(it, pages, depth + 1));
+    }
+
+    private InputStream openSitemap(final String location) throws IOException {
+        final InputStream stream = location.startsWith("http://") || location.startsWith("https://") || location.startsWith("file:") ?
+                new URL(location).openStream() : Files.newInputStream(new File(location).toPath());
+        return location.endsWith(".gz") ? new GZIPInputStream(stream) : stream;
+    }
+
+    private synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            // one thread feeds the renderer, the other one chains the refreshes
+            final AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newScheduledThreadPool(2, r -> {
+                final Thread thread = new Thread(r, CacheWarmer.class.getSimpleName() + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+}
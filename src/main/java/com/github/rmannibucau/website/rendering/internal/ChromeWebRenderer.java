@@ -0,0 +1,575 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Renders the pages with a headless Chrome (or Chromium) driven through the DevTools protocol.
+ * A single browser process renders several pages concurrently, each one in its own tab
+ * and browser context (isolated cookies, storage and cache) disposed after the capture.
+ */
+@ApplicationScoped
+@Typed(ChromeWebRenderer.class)
+public class ChromeWebRenderer implements WebRenderer {
+    private static final Logger LOGGER = Logger.getLogger(ChromeWebRenderer.class.getName());
+    private static final Pattern DEVTOOLS_URL = Pattern.compile("DevTools listening on (ws://\\S+)");
+    private static final String[] EXECUTABLES = {"chromium", "chromium-browser", "google-chrome", "google-chrome-stable", "chrome"};
+    private static final String PAGE_SOURCE = "" +
+            "(document.doctype ? new XMLSerializer().serializeToString(document.doctype) : '') + " +
+            "document.documentElement.outerHTML";
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.path")
+    private Optional<String> chromePath;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.arguments")
+    private Optional<String> chromeArguments;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.tabs", defaultValue = "4")
+    private Integer chromeTabs;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.startupTimeout", defaultValue = "30000")
+    private Integer chromeStartupTimeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.timeout", defaultValue = "15000")
+    private Long chromeTimeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.readiness", defaultValue = "load")
+    private String chromeReadiness;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.readiness.selector")
+    private Optional<String> chromeReadinessSelector;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.readiness.flag", defaultValue = "window.renderComplete")
+    private String chromeReadinessFlag;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.readiness.timeout", defaultValue = "10000")
+    private Long chromeReadinessTimeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.chrome.readiness.pollInterval", defaultValue = "50")
+    private Long chromeReadinessPollInterval;
+
+    @Inject
+    private RenderingMetrics metrics;
+
+    // captures waiting for a free tab
+    private final Queue<PendingCapture> pendingCaptures = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger activeTabs = new AtomicInteger();
+    private ScheduledExecutorService scheduler;
+    private ExecutorService starter;
+    private String readinessExpression;
+    private LatencyHistogram waitDuration;
+    private LatencyHistogram captureDuration;
+    private Browser browser; // guarded by this, started on first use and restarted if it crashed
+
+    @PostConstruct
+    private void init() {
+        if (chromeTabs <= 0) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.chrome.tabs must be positive");
+        }
+        switch (chromeReadiness.trim().toLowerCase(ROOT)) {
+            case "load":
+                break;
+            case "selector":
+                readinessExpression = "document.querySelector(" + Json.createValue(chromeReadinessSelector.orElseThrow(
+                        () -> new IllegalArgumentException("No selector set, please configure rmannibucau.website.rendering.chrome.readiness.selector")))
+                        + ") !== null";
+                break;
+            case "flag": // the flag can be undefined until the application sets it
+                readinessExpression = "(function () { try { return !!(" + chromeReadinessFlag + "); } catch (e) { return false; } })()";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported readiness: " + chromeReadiness);
+        }
+        waitDuration = metrics.histogram("chrome.wait");
+        captureDuration = metrics.histogram("chrome.capture");
+        metrics.gauge("chrome.tabs", activeTabs::get);
+        metrics.gauge("chrome.pending", pendingCaptures::size);
+
+        final AtomicInteger counter = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(1, r -> {
+            final Thread thread = new Thread(r, ChromeWebRenderer.class.getSimpleName() + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the startup blocks up to the startup timeout, it must not delay the deadlines and readiness checks
+        starter = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, ChromeWebRenderer.class.getSimpleName() + "-starter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    private synchronized void destroy() {
+        scheduler.shutdownNow();
+        starter.shutdownNow();
+        PendingCapture capture;
+        while ((capture = pendingCaptures.poll()) != null) {
+            capture.result.cancel(false);
+        }
+        if (browser != null) {
+            browser.close();
+            browser = null;
+        }
+    }
+
+    /**
+     * The only supported API is {@link DevTools}, it gives access to a fresh tab closed once the consumer returns.
+     */
+    @Override
+    public <T> void withDriver(final Class<T> expectedApi, final Consumer<T> consumer) {
+        if (expectedApi != DevTools.class) {
+            throw new IllegalArgumentException("Chrome renderer only provides " + DevTools.class.getName());
+        }
+        final Tab tab = await(getBrowser().thenCompose(this::openTab));
+        try {
+            consumer.accept(expectedApi.cast((DevTools) (method, params) -> await(tab.send(method, params))));
+        } finally {
+            tab.close();
+        }
+    }
+
+    @Override
+    public String capture(final String url) {
+        return await(captureAsync(url).toCompletableFuture());
+    }
+
+    @Override
+    public CompletionStage<String> captureAsync(final String url) {
+        final PendingCapture capture = new PendingCapture(url);
+        pendingCaptures.add(capture);
+        dispatch();
+        return capture.result;
+    }
+
+    // both sides (new capture, released tab) enqueue/release then dispatch so one of them always sees the match
+    private void dispatch() {
+        while (!pendingCaptures.isEmpty()) {
+            int current;
+            do {
+                current = activeTabs.get();
+                if (current >= chromeTabs) {
+                    return;
+                }
+            } while (!activeTabs.compareAndSet(current, current + 1));
+
+            final PendingCapture capture = pendingCaptures.poll();
+            if (capture == null || capture.result.isDone()) { // nothing to do or cancelled by the caller
+                activeTabs.decrementAndGet();
+                continue;
+            }
+            render(capture).whenComplete((html, error) -> {
+                activeTabs.decrementAndGet();
+                dispatch();
+            });
+        }
+    }
+
+    private CompletableFuture<String> render(final PendingCapture capture) {
+        final long start = System.nanoTime();
+        waitDuration.record(start - capture.created);
+        final CompletableFuture<String> rendering = new CompletableFuture<>();
+        final ScheduledFuture<?> deadline;
+        try {
+            // hard deadline, the tab is closed even if the page never loads
+            deadline = scheduler.schedule(() -> rendering.completeExceptionally(
+                    new TimeoutException("Rendering of " + capture.url + " timed out after " + chromeTimeout + "ms")), chromeTimeout, MILLISECONDS);
+        } catch (final RejectedExecutionException ree) { // shutting down
+            capture.result.completeExceptionally(ree);
+            rendering.completeExceptionally(ree);
+            return rendering;
+        }
+        capture.result.whenComplete((html, error) -> { // cancelled by the caller
+            if (error != null) {
+                rendering.completeExceptionally(error);
+            }
+        });
+
+        final CompletableFuture<Tab> tab = getBrowser().thenCompose(this::openTab);
+        tab.thenCompose(it -> {
+                    final CompletableFuture<JsonObject> loaded = it.once("Page.loadEventFired");
+                    return it.send("Page.navigate", Json.createObjectBuilder().add("url", capture.url).build())
+                            .thenCompose(navigation -> {
+                                if (navigation.containsKey("errorText")) {
+                                    throw new IllegalStateException("Can't load " + capture.url + ": " + navigation.getString("errorText"));
+                                }
+                                return loaded;
+                            })
+                            .thenCompose(ignored -> awaitReadiness(it, capture.url, System.nanoTime() + MILLISECONDS.toNanos(chromeReadinessTimeout)))
+                            .thenCompose(ignored -> it.evaluate(PAGE_SOURCE))
+                            .thenApply(result -> result.getString("value"));
+                })
+                .whenComplete((html, error) -> {
+                    if (error != null) {
+                        rendering.completeExceptionally(unwrap(error));
+                    } else {
+                        rendering.complete(html);
+                    }
+                });
+        rendering.whenComplete((html, error) -> {
+            deadline.cancel(false);
+            tab.thenAccept(Tab::close);
+            if (error != null) {
+                capture.result.completeExceptionally(error);
+            } else {
+                captureDuration.recordSince(start);
+                capture.result.complete(html);
+            }
+        });
+        return rendering;
+    }
+
+    // the page is loaded, poll until it is rendered or the deadline is reached (then the page is captured as it is)
+    private CompletableFuture<Void> awaitReadiness(final Tab tab, final String url, final long deadline) {
+        if (readinessExpression == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return tab.evaluate(readinessExpression).thenCompose(result -> {
+            if (result.getBoolean("value", false)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                LOGGER.warning(url + " not rendered after " + chromeReadinessTimeout + "ms, capturing it anyway");
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<Void> next = new CompletableFuture<>();
+            scheduler.schedule(() -> awaitReadiness(tab, url, deadline).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    next.completeExceptionally(error);
+                } else {
+                    next.complete(null);
+                }
+            }), chromeReadinessPollInterval, MILLISECONDS);
+            return next;
+        });
+    }
+
+    private CompletableFuture<Tab> openTab(final Browser current) {
+        final DevToolsConnection connection = current.connection;
+        return connection.send(null, "Target.createBrowserContext", null)
+                .thenCompose(context -> {
+                    final String contextId = context.getString("browserContextId");
+                    return connection.send(null, "Target.createTarget", Json.createObjectBuilder()
+                            .add("url", "about:blank")
+                            .add("browserContextId", contextId)
+                            .build())
+                            .thenCompose(target -> connection.send(null, "Target.attachToTarget", Json.createObjectBuilder()
+                                    .add("targetId", target.getString("targetId"))
+                                    .add("flatten", true)
+                                    .build()))
+                            .thenApply(attached -> new Tab(connection, contextId, attached.getString("sessionId")))
+                            .thenCompose(tab -> tab.send("Page.enable", null).thenApply(ignored -> tab))
+                            .whenComplete((tab, error) -> { // the tab is not returned so nobody else can dispose it
+                                if (error != null) {
+                                    disposeContext(connection, contextId);
+                                }
+                            });
+                });
+    }
+
+    private CompletableFuture<Browser> getBrowser() {
+        final CompletableFuture<Browser> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (browser != null && browser.isAlive()) {
+                result.complete(browser);
+                return result;
+            }
+        }
+        try { // starting the browser is blocking so don't do it in the caller thread
+            starter.execute(() -> {
+                try {
+                    result.complete(startBrowserIfNeeded());
+                } catch (final RuntimeException re) {
+                    result.completeExceptionally(re);
+                }
+            });
+        } catch (final RejectedExecutionException ree) {
+            result.completeExceptionally(ree);
+        }
+        return result;
+    }
+
+    private synchronized Browser startBrowserIfNeeded() {
+        if (browser != null) {
+            if (browser.isAlive()) {
+                return browser;
+            }
+            LOGGER.warning("Chrome stopped, restarting it");
+            browser.close();
+            browser = null;
+        }
+        browser = new Browser(findExecutable(), chromeArguments.map(it -> Stream.of(it.trim().split("\\s+"))
+                .filter(arg -> !arg.isEmpty())
+                .toArray(String[]::new)).orElseGet(() -> new String[0]), chromeStartupTimeout);
+        return browser;
+    }
+
+    private String findExecutable() {
+        if (chromePath.isPresent()) {
+            return chromePath.get();
+        }
+        final String path = System.getenv("PATH");
+        if (path != null) {
+            for (final String executable : EXECUTABLES) {
+                for (final String folder : path.split(File.pathSeparator)) {
+                    final File candidate = new File(folder, executable);
+                    if (candidate.canExecute()) {
+                        return candidate.getAbsolutePath();
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("No Chrome found, please specify rmannibucau.website.rendering.chrome.path");
+    }
+
+    private static void disposeContext(final DevToolsConnection connection, final String contextId) {
+        connection.send(null, "Target.disposeBrowserContext", Json.createObjectBuilder().add("browserContextId", contextId).build())
+                .exceptionally(error -> {
+                    LOGGER.log(FINE, error.getMessage(), error);
+                    return null;
+                });
+    }
+
+    private static Throwable unwrap(final Throwable error) {
+        return CompletionException.class.isInstance(error) && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IllegalStateException(e);
+        } catch (final CancellationException ce) {
+            throw new IllegalStateException(ce);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (RuntimeException.class.isInstance(cause)) {
+                throw RuntimeException.class.cast(cause);
+            }
+            if (Error.class.isInstance(cause)) {
+                throw Error.class.cast(cause);
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Raw access to a tab through the DevTools protocol.
+     */
+    @FunctionalInterface
+    public interface DevTools {
+        /**
+         * @param method the DevTools protocol method, for instance {@code Page.navigate}.
+         * @param params the method parameters, can be null.
+         * @return the method result.
+         */
+        JsonObject send(String method, JsonObject params);
+    }
+
+    private static final class PendingCapture {
+        private final String url;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final long created = System.nanoTime();
+
+        private PendingCapture(final String url) {
+            this.url = url;
+        }
+    }
+
+    private static final class Tab {
+        private final DevToolsConnection connection;
+        private final String contextId;
+        private final String sessionId;
+
+        private Tab(final DevToolsConnection connection, final String contextId, final String sessionId) {
+            this.connection = connection;
+            this.contextId = contextId;
+            this.sessionId = sessionId;
+        }
+
+        private CompletableFuture<JsonObject> send(final String method, final JsonObject params) {
+            return connection.send(sessionId, method, params);
+        }
+
+        private CompletableFuture<JsonObject> once(final String event) {
+            return connection.once(sessionId, event);
+        }
+
+        private CompletableFuture<JsonObject> evaluate(final String expression) {
+            return send("Runtime.evaluate", Json.createObjectBuilder()
+                    .add("expression", expression)
+                    .add("returnByValue", true)
+                    .build())
+                    .thenApply(response -> {
+                        if (response.containsKey("exceptionDetails")) {
+                            throw new IllegalStateException("Evaluation failed: " + response.getJsonObject("exceptionDetails"));
+                        }
+                        return response.getJsonObject("result");
+                    });
+        }
+
+        // disposing the context closes its tabs and drops its cookies and storage
+        private void close() {
+            connection.forget(sessionId);
+            disposeContext(connection, contextId);
+        }
+    }
+
+    private static final class Browser implements AutoCloseable {
+        private final Process process;
+        private final Path profile;
+        private final DevToolsConnection connection;
+
+        private Browser(final String executable, final String[] arguments, final int startupTimeout) {
+            try {
+                profile = Files.createTempDirectory("website-rendering-chrome");
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+            final List<String> command = new ArrayList<>();
+            command.add(executable);
+            command.add("--headless");
+            command.add("--disable-gpu");
+            command.add("--remote-debugging-port=0");
+            command.add("--user-data-dir=" + profile.toAbsolutePath());
+            command.add("--no-first-run");
+            command.add("--no-default-browser-check");
+            command.add("--disable-extensions");
+            command.add("--disable-background-networking");
+            command.add("--mute-audio");
+            command.add("--hide-scrollbars");
+            Stream.of(arguments).forEach(command::add);
+            command.add("about:blank");
+            try {
+                process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            } catch (final IOException e) {
+                deleteProfile();
+                throw new IllegalStateException("Can't start " + executable, e);
+            }
+
+            // chrome logs the DevTools endpoint once started, then the output is just drained
+            final CompletableFuture<String> endpoint = new CompletableFuture<>();
+            final Thread output = new Thread(() -> {
+                try (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!endpoint.isDone()) {
+                            final Matcher matcher = DEVTOOLS_URL.matcher(line);
+                            if (matcher.find()) {
+                                endpoint.complete(matcher.group(1));
+                                continue;
+                            }
+                        }
+                        LOGGER.log(FINE, line);
+                    }
+                } catch (final IOException e) {
+                    LOGGER.log(FINE, e.getMessage(), e);
+                } finally {
+                    endpoint.completeExceptionally(new IllegalStateException("Chrome exited before being started"));
+                }
+            }, ChromeWebRenderer.class.getSimpleName() + "-output");
+            output.setDaemon(true);
+            output.start();
+
+            try {
+                connection = new DevToolsConnection(URI.create(endpoint.get(startupTimeout, MILLISECONDS)), startupTimeout);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException(e);
+            } catch (final ExecutionException | TimeoutException | IOException e) {
+                close();
+                throw new IllegalStateException("Can't connect to Chrome", e);
+            }
+        }
+
+        private boolean isAlive() {
+            return process.isAlive() && connection.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // connection is null if the startup failed
+            if (connection != null) {
+                connection.close();
+            }
+            process.destroy();
+            try {
+                if (!process.waitFor(10, SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+            }
+            deleteProfile();
+        }
+
+        private void deleteProfile() {
+            try (final Stream<Path> files = Files.walk(profile)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            } catch (final IOException e) {
+                LOGGER.log(WARNING, "Can't delete " + profile + ": " + e.getMessage());
+            }
+        }
+    }
+}
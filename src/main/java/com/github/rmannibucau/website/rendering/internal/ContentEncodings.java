@@ -0,0 +1,198 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyList;
+import static java.util.Locale.ROOT;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Precomputes the content encodings of the pages when they are stored
+ * and selects the one to serve from the {@code Accept-Encoding} header.
+ */
+@ApplicationScoped
+public class ContentEncodings {
+    public static final String IDENTITY = "identity";
+    public static final String GZIP = "gzip";
+    public static final String BROTLI = "br";
+
+    private static final Logger LOGGER = Logger.getLogger(ContentEncodings.class.getName());
+
+    // preference order when the client accepts several encodings with the same quality
+    private static final Collection<String> PREFERENCES = Stream.of(BROTLI, GZIP, IDENTITY).collect(toList());
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.encodings")
+    private Optional<String> configuredEncodings;
+
+    private Collection<String> encodings;
+    private Method brotli;
+
+    @PostConstruct
+    private void init() {
+        encodings = configuredEncodings
+                .map(value -> Stream.of(value.split(","))
+                        .map(it -> it.trim().toLowerCase(ROOT))
+                        .filter(it -> !it.isEmpty())
+                        .distinct()
+                        .filter(this::isSupported)
+                        .collect(toList()))
+                .orElse(emptyList());
+    }
+
+    public boolean isEnabled() {
+        return !encodings.isEmpty();
+    }
+
+    public Collection<String> getEncodings() {
+        return encodings;
+    }
+
+    /**
+     * @param html the page to encode.
+     * @return the configured encodings of the page.
+     */
+    public Map<String, byte[]> encode(final String html) {
+        final byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        final Map<String, byte[]> encoded = new LinkedHashMap<>(encodings.size());
+        for (final String encoding : encodings) {
+            encoded.put(encoding, encode(encoding, bytes));
+        }
+        return encoded;
+    }
+
+    /**
+     * @param html the page.
+     * @return a hash of the page (first 128 bits of its SHA-256 as hexadecimal), used as {@code ETag}.
+     */
+    public static String hash(final String html) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(html.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) { // mandatory algorithm
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder hash = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            hash.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @param acceptEncoding the request {@code Accept-Encoding} header.
+     * @param available the encodings available for the page.
+     * @return the best encoding to serve or null if none is acceptable.
+     */
+    public String negotiate(final String acceptEncoding, final Collection<String> available) {
+        if (available.isEmpty()) {
+            return null;
+        }
+        if (acceptEncoding == null || acceptEncoding.trim().isEmpty()) {
+            return available.contains(IDENTITY) ? IDENTITY : null;
+        }
+
+        final Map<String, Double> qualities = new LinkedHashMap<>();
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] segments = part.split(";");
+            final String name = segments[0].trim().toLowerCase(ROOT);
+            if (name.isEmpty()) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < segments.length; i++) {
+                final String parameter = segments[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (final NumberFormatException nfe) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(name, quality);
+        }
+
+        final double wildcard = qualities.getOrDefault("*", -1.);
+        String best = null;
+        double bestQuality = 0;
+        for (final String encoding : PREFERENCES) {
+            if (!available.contains(encoding)) {
+                continue;
+            }
+            final double quality = qualities.getOrDefault(encoding,
+                    wildcard >= 0 ? wildcard : (IDENTITY.equals(encoding) ? 1e-3 /* implicitly acceptable */ : 0));
+            if (quality > bestQuality) {
+                best = encoding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private byte[] encode(final String encoding, final byte[] bytes) {
+        switch (encoding) {
+            case IDENTITY:
+                return bytes;
+            case GZIP:
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+                try (final GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                    gzip.write(bytes);
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                return out.toByteArray();
+            case BROTLI:
+                try {
+                    return byte[].class.cast(brotli.invoke(null, (Object) bytes));
+                } catch (final IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (final InvocationTargetException e) {
+                    throw new IllegalStateException(e.getTargetException());
+                }
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+    }
+
+    private boolean isSupported(final String encoding) {
+        switch (encoding) {
+            case IDENTITY:
+            case GZIP:
+                return true;
+            case BROTLI: // optional, relies on brotli4j
+                try {
+                    final ClassLoader loader = ContentEncodings.class.getClassLoader();
+                    loader.loadClass("com.aayushatharva.brotli4j.Brotli4jLoader")
+                            .getMethod("ensureAvailability").invoke(null);
+                    brotli = loader.loadClass("com.aayushatharva.brotli4j.encoder.Encoder").getMethod("compress", byte[].class);
+                    return true;
+                } catch (final Exception | LinkageError e) {
+                    LOGGER.log(WARNING, "Brotli encoding ignored, brotli4j is not available: " + e.getMessage());
+                    return false;
+                }
+            default:
+                throw new IllegalArgumentException("Unsupported encoding: " + encoding);
+        }
+    }
+}
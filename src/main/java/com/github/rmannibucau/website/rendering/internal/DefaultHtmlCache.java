@@ -1,6 +1,12 @@
 package com.github.rmannibucau.website.rendering.internal;
 
-import java.util.Optional;
+import static java.util.Locale.ROOT;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
@@ -16,13 +22,37 @@ public class DefaultHtmlCache implements HtmlCache {
     @ConfigProperty(name = "rmannibucau.website.rendering.cache.mode", defaultValue = "jcache")
     private String mode;
 
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.near.size", defaultValue = "0")
+    private Long nearCacheSize;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.near.eviction", defaultValue = "lru")
+    private String nearCacheEviction;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.near.ttl", defaultValue = "0")
+    private Long nearCacheTtl;
+
     @Inject
     private JCacheHtmlCache jcache;
 
     @Inject
     private LocalFileSystemHtmlCache fileSystem;
 
+    @Inject
+    private PackHtmlCache pack;
+
+    @Inject
+    private RenderingMetrics metrics;
+
     private HtmlCache delegate;
+    private NearCache nearCache;
+    private UnaryOperator<String> nearCacheKey = UnaryOperator.identity(); // same page, same key as in the storage
+    private LatencyHistogram getDuration;
+    private LatencyHistogram putDuration;
+    private LongAdder hits;
+    private LongAdder misses;
 
     @PostConstruct
     private void init() {
@@ -32,24 +62,142 @@ public class DefaultHtmlCache implements HtmlCache {
                 break;
             case "file":
                 delegate = fileSystem;
+                nearCacheKey = fileSystem::normalize; // the bulk invalidations return the normalized keys
+                metrics.gauge("cache.file.entries", fileSystem::getEntries);
+                metrics.gauge("cache.file.bytes", fileSystem::getBytes);
+                metrics.gauge("cache.file.evictions", fileSystem::getEvictions);
+                metrics.gauge("cache.file.reclaimedBytes", fileSystem::getReclaimedBytes);
+                break;
+            case "pack":
+                delegate = pack;
+                metrics.gauge("cache.pack.entries", pack::getEntries);
+                metrics.gauge("cache.pack.segments", pack::getSegments);
+                metrics.gauge("cache.pack.bytes", pack::getBytes);
+                metrics.gauge("cache.pack.deadBytes", pack::getDeadBytes);
+                metrics.gauge("cache.pack.compactions", pack::getCompactions);
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported cache mode: " + mode);
         }
+        if (nearCacheSize > 0) {
+            switch (nearCacheEviction.trim().toLowerCase(ROOT)) {
+                case "lru":
+                    nearCache = new NearCache(nearCacheSize, false, nearCacheTtl);
+                    break;
+                case "tinylfu":
+                    nearCache = new NearCache(nearCacheSize, true, nearCacheTtl);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported near cache eviction: " + nearCacheEviction);
+            }
+            metrics.gauge("cache.near.hits", nearCache::getHits);
+            metrics.gauge("cache.near.misses", nearCache::getMisses);
+            metrics.gauge("cache.near.evictions", nearCache::getEvictions);
+            metrics.gauge("cache.near.bytes", nearCache::getBytes);
+        }
+        getDuration = metrics.histogram("cache.get");
+        putDuration = metrics.histogram("cache.put");
+        hits = metrics.counter("cache.hits");
+        misses = metrics.counter("cache.misses");
     }
 
     @Override
     public String get(final String key) {
-        return delegate.get(key);
+        if (nearCache == null) {
+            final long start = System.nanoTime();
+            return onGet(delegate.get(key), start);
+        }
+        final Entry entry = getEntry(key);
+        return entry == null ? null : entry.getHtml();
     }
 
     @Override
     public boolean putIfAbsent(final String key, final String html) {
-        return delegate.putIfAbsent(key, html);
+        final long start = System.nanoTime();
+        final boolean added = delegate.putIfAbsent(key, html);
+        if (added && nearCache != null) {
+            nearCache.invalidate(nearCacheKey.apply(key));
+        }
+        putDuration.recordSince(start);
+        return added;
     }
 
     @Override
     public boolean invalidate(final String key) {
-        return delegate.invalidate(key);
+        final boolean invalidated = delegate.invalidate(key);
+        if (nearCache != null) { // after the storage to ensure a concurrent load can't cache the old page
+            nearCache.invalidate(nearCacheKey.apply(key));
+        }
+        return invalidated;
+    }
+
+    @Override
+    public Collection<String> getKeysByPrefix(final String prefix) {
+        return delegate.getKeysByPrefix(prefix);
+    }
+
+    @Override
+    public Collection<String> getKeysByTag(final String tag) {
+        return delegate.getKeysByTag(tag);
+    }
+
+    @Override
+    public Entry getEntry(final String key) {
+        final long start = System.nanoTime();
+        if (nearCache == null) {
+            return onGet(delegate.getEntry(key), start);
+        }
+        final String nearKey = nearCacheKey.apply(key);
+        final Entry cached = nearCache.get(nearKey);
+        if (cached != null) {
+            return onGet(cached, start);
+        }
+        final long version = nearCache.version(nearKey);
+        final Entry entry = load(delegate.getEntry(key));
+        if (entry != null) {
+            nearCache.put(nearKey, entry, version);
+        }
+        return onGet(entry, start);
+    }
+
+    @Override
+    public boolean put(final String key, final String html) {
+        final long start = System.nanoTime();
+        final boolean stored = delegate.put(key, html);
+        if (nearCache != null) {
+            nearCache.invalidate(nearCacheKey.apply(key));
+        }
+        putDuration.recordSince(start);
+        return stored;
+    }
+
+    private <T> T onGet(final T value, final long start) {
+        getDuration.recordSince(start);
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    NearCache getNearCache() {
+        return nearCache;
+    }
+
+    // the near cache keeps everything in memory so load the lazy entries of the storages
+    private Entry load(final Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        final String html = entry.getHtml();
+        if (html == null) {
+            return null;
+        }
+        final Map<String, byte[]> encoded = new HashMap<>();
+        for (final String encoding : entry.getEncodings()) {
+            final byte[] bytes = entry.getEncoded(encoding);
+            if (bytes != null) {
+                encoded.put(encoding, bytes);
+            }
+        }
+        final String hash = entry.getHash();
+        return new Entry(html, entry.getTimestamp(), encoded, hash == null ? ContentEncodings.hash(html) : hash);
     }
 }
@@ -0,0 +1,108 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toList;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.api.PageInvalidator;
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+@ApplicationScoped
+public class DefaultPageInvalidator implements PageInvalidator {
+    private static final Logger LOGGER = Logger.getLogger(DefaultPageInvalidator.class.getName());
+
+    @Inject
+    private HtmlCache cache;
+
+    @Inject
+    private CacheWarmer warmer;
+
+    @Inject
+    private RenderingMetrics metrics;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.invalidation.rerender", defaultValue = "false")
+    private Boolean rerender;
+
+    private LongAdder invalidated;
+
+    @PostConstruct
+    private void init() {
+        invalidated = metrics.counter("invalidation.pages");
+    }
+
+    @Override
+    public Collection<String> invalidateByPrefix(final String prefix) {
+        return invalidate(cache.getKeysByPrefix(prefix));
+    }
+
+    // only the keys starting with the literal beginning of the pattern are tested
+    @Override
+    public Collection<String> invalidateByPattern(final String pattern) {
+        final Pattern regex = toRegex(pattern);
+        return invalidate(cache.getKeysByPrefix(literalPrefix(pattern)).stream()
+                .filter(key -> regex.matcher(key).matches())
+                .collect(toList()));
+    }
+
+    @Override
+    public Collection<String> invalidateByTag(final String tag) {
+        return invalidate(cache.getKeysByTag(tag));
+    }
+
+    // when rerendering, the pages are only replaced once rendered again so there is no burst of misses
+    private Collection<String> invalidate(final Collection<String> keys) {
+        invalidated.add(keys.size());
+        if (rerender) {
+            warmer.refresh(keys).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    LOGGER.log(WARNING, "Refresh of the invalidated pages failed: " + error.getMessage(), error);
+                }
+            });
+        } else {
+            keys.forEach(cache::invalidate);
+        }
+        return keys;
+    }
+
+    static String literalPrefix(final String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    static Pattern toRegex(final String pattern) {
+        final StringBuilder regex = new StringBuilder(pattern.length() + 16);
+        final StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Locale.ROOT;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.spi.RenderingLease;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Selects how the renderings are coordinated between the nodes, by default each node renders its own misses.
+ */
+@ApplicationScoped
+public class DefaultRenderingLease implements RenderingLease {
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.lease.mode", defaultValue = "none")
+    private String mode;
+
+    @Inject
+    private JCacheRenderingLease jcache;
+
+    private RenderingLease delegate;
+
+    @PostConstruct
+    private void init() {
+        switch (mode.trim().toLowerCase(ROOT)) {
+            case "none":
+                delegate = null;
+                break;
+            case "jcache":
+                delegate = jcache;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported lease mode: " + mode);
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(final String url) {
+        return delegate == null || delegate.tryAcquire(url);
+    }
+
+    @Override
+    public void release(final String url) {
+        if (delegate != null) {
+            delegate.release(url);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Locale.ROOT;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Selects the rendering engine, the engines are only started when selected.
+ */
+@ApplicationScoped
+public class DefaultWebRenderer implements WebRenderer {
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.engine", defaultValue = "phantomjs")
+    private String engine;
+
+    @Inject
+    private PhantomJsWebRenderer phantomJs;
+
+    @Inject
+    private ChromeWebRenderer chrome;
+
+    private WebRenderer delegate;
+
+    @PostConstruct
+    private void init() {
+        switch (engine.trim().toLowerCase(ROOT)) {
+            case "phantomjs":
+                delegate = phantomJs;
+                break;
+            case "chrome":
+                delegate = chrome;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported rendering engine: " + engine);
+        }
+    }
+
+    @Override
+    public <T> void withDriver(final Class<T> expectedApi, final Consumer<T> consumer) {
+        delegate.withDriver(expectedApi, consumer);
+    }
+
+    @Override
+    public String capture(final String url) {
+        return delegate.capture(url);
+    }
+
+    @Override
+    public CompletionStage<String> captureAsync(final String url) {
+        return delegate.captureAsync(url);
+    }
+
+    @Override
+    public CompletionStage<Map<String, String>> captureAll(final Collection<String> urls) {
+        return delegate.captureAll(urls);
+    }
+}
@@ -0,0 +1,309 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.logging.Level.FINE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Chrome DevTools protocol connection to a local browser. The sessions of the tabs are multiplexed
+ * on the browser connection ({@code flatten} mode) so a single socket and reader thread serve all the renderings.
+ * It embeds a minimal websocket client (RFC 6455) to not require a websocket implementation in the application.
+ */
+class DevToolsConnection implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(DevToolsConnection.class.getName());
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final AtomicLong ids = new AtomicLong();
+    private final ConcurrentMap<Long, CompletableFuture<JsonObject>> responses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<JsonObject>> events = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    DevToolsConnection(final URI uri, final int timeout) throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()), timeout);
+        socket.setTcpNoDelay(true);
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        output = new BufferedOutputStream(socket.getOutputStream());
+        try {
+            socket.setSoTimeout(timeout); // a browser accepting the connection but never answering must not block the startup
+            handshake(uri);
+            socket.setSoTimeout(0); // the reader waits for the events as long as the browser runs
+        } catch (final IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+        final Thread reader = new Thread(this::read, DevToolsConnection.class.getSimpleName() + "-" + uri.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @param sessionId the tab session or null for a browser command.
+     * @param method the protocol method.
+     * @param params the method parameters, can be null.
+     * @return the command result.
+     */
+    CompletableFuture<JsonObject> send(final String sessionId, final String method, final JsonObject params) {
+        final long id = ids.incrementAndGet();
+        final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        if (!open) {
+            result.completeExceptionally(new IllegalStateException("DevTools connection closed"));
+            return result;
+        }
+        responses.put(id, result);
+        final JsonObjectBuilder message = Json.createObjectBuilder().add("id", id).add("method", method);
+        if (sessionId != null) {
+            message.add("sessionId", sessionId);
+        }
+        if (params != null) {
+            message.add("params", params);
+        }
+        try {
+            writeFrame(0x1, message.build().toString().getBytes(StandardCharsets.UTF_8));
+        } catch (final IOException e) {
+            responses.remove(id);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Must be called before the command triggering the event, a single listener per session and event is supported.
+     *
+     * @param sessionId the tab session.
+     * @param method the event to wait for.
+     * @return the next event parameters.
+     */
+    CompletableFuture<JsonObject> once(final String sessionId, final String method) {
+        final CompletableFuture<JsonObject> result = new CompletableFuture<>();
+        if (!open) {
+            result.completeExceptionally(new IllegalStateException("DevTools connection closed"));
+            return result;
+        }
+        events.put(sessionId + '|' + method, result);
+        return result;
+    }
+
+    // fails the listeners of a closed session
+    void forget(final String sessionId) {
+        final String prefix = sessionId + '|';
+        events.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(prefix)) {
+                entry.getValue().completeExceptionally(new IllegalStateException("Session " + sessionId + " closed"));
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            try {
+                writeFrame(0x8, new byte[0]);
+            } catch (final IOException e) {
+                LOGGER.log(FINE, e.getMessage(), e);
+            }
+        }
+        onClose();
+    }
+
+    private void read() {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        try {
+            while (open) {
+                final int header = input.readUnsignedByte();
+                final int lengthHeader = input.readUnsignedByte();
+                final boolean fin = (header & 0x80) != 0;
+                final int opcode = header & 0x0F;
+                long length = lengthHeader & 0x7F;
+                if (length == 126) {
+                    length = input.readUnsignedShort();
+                } else if (length == 127) {
+                    length = input.readLong();
+                }
+                final byte[] mask = (lengthHeader & 0x80) != 0 ? new byte[4] : null;
+                if (mask != null) {
+                    input.readFully(mask);
+                }
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Frame too big: " + length);
+                }
+                final byte[] payload = new byte[(int) length];
+                input.readFully(payload);
+                if (mask != null) {
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] ^= mask[i % 4];
+                    }
+                }
+                switch (opcode) {
+                    case 0x0: // continuation
+                    case 0x1: // text
+                    case 0x2: // binary, not used by the protocol
+                        message.write(payload);
+                        if (fin) {
+                            dispatch(new String(message.toByteArray(), StandardCharsets.UTF_8));
+                            message.reset();
+                        }
+                        break;
+                    case 0x8:
+                        return;
+                    case 0x9:
+                        writeFrame(0xA, payload);
+                        break;
+                    default: // pong
+                }
+            }
+        } catch (final EOFException eof) {
+            // browser closed
+        } catch (final IOException | RuntimeException e) {
+            if (open) {
+                LOGGER.log(FINE, e.getMessage(), e);
+            }
+        } finally {
+            onClose();
+        }
+    }
+
+    private void dispatch(final String text) {
+        final JsonObject message = Json.createReader(new StringReader(text)).readObject();
+        if (message.containsKey("id")) {
+            final CompletableFuture<JsonObject> response = responses.remove(message.getJsonNumber("id").longValue());
+            if (response == null) {
+                return;
+            }
+            if (message.containsKey("error")) {
+                response.completeExceptionally(new IllegalStateException(message.getJsonObject("error").getString("message", "DevTools error")));
+            } else {
+                response.complete(message.getJsonObject("result"));
+            }
+        } else if (message.containsKey("method")) {
+            final CompletableFuture<JsonObject> listener = events.remove(message.getString("sessionId", null) + '|' + message.getString("method"));
+            if (listener != null) {
+                listener.complete(message.containsKey("params") ? message.getJsonObject("params") : Json.createObjectBuilder().build());
+            }
+        }
+    }
+
+    private void onClose() {
+        open = false;
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            LOGGER.log(FINE, e.getMessage(), e);
+        }
+        final IllegalStateException error = new IllegalStateException("DevTools connection closed");
+        responses.values().forEach(it -> it.completeExceptionally(error));
+        responses.clear();
+        events.values().forEach(it -> it.completeExceptionally(error));
+        events.clear();
+    }
+
+    // client frames are always masked
+    private void writeFrame(final int opcode, final byte[] payload) throws IOException {
+        final byte[] mask = new byte[4];
+        RANDOM.nextBytes(mask);
+        synchronized (output) {
+            output.write(0x80 | opcode);
+            if (payload.length < 126) {
+                output.write(0x80 | payload.length);
+            } else if (payload.length <= 0xFFFF) {
+                output.write(0x80 | 126);
+                output.write(payload.length >>> 8);
+                output.write(payload.length);
+            } else {
+                output.write(0x80 | 127);
+                for (int i = 7; i >= 0; i--) {
+                    output.write((int) ((long) payload.length >>> (8 * i)));
+                }
+            }
+            output.write(mask);
+            final byte[] masked = new byte[payload.length];
+            for (int i = 0; i < payload.length; i++) {
+                masked[i] = (byte) (payload[i] ^ mask[i % 4]);
+            }
+            output.write(masked);
+            output.flush();
+        }
+    }
+
+    private void handshake(final URI uri) throws IOException {
+        final byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        final String key = Base64.getEncoder().encodeToString(nonce);
+        output.write(("GET " + uri.getRawPath() + " HTTP/1.1\r\n" +
+                "Host: " + uri.getHost() + ':' + uri.getPort() + "\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: " + key + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        output.flush();
+
+        final String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("Unexpected DevTools handshake response: " + status);
+        }
+        String accept = null;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            final int separator = line.indexOf(':');
+            if (separator > 0 && "sec-websocket-accept".equalsIgnoreCase(line.substring(0, separator).trim())) {
+                accept = line.substring(separator + 1).trim();
+            }
+        }
+        try {
+            final String expected = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                    .digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII)));
+            if (!expected.equals(accept)) {
+                throw new IOException("Invalid DevTools handshake accept header: " + accept);
+            }
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String readLine() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) >= 0) {
+            if (c == '\n') {
+                final int length = line.length();
+                return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+            }
+            line.append((char) c);
+        }
+        throw new EOFException("DevTools connection closed during the handshake");
+    }
+}
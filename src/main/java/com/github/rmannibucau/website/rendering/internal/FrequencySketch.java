@@ -0,0 +1,71 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A count-min sketch estimating how often a key was seen with a fixed memory footprint.
+ * Counters are halved every {@code sampleSize} increments so the estimation follows the recent traffic.
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+    private final AtomicIntegerArray table;
+    private final AtomicInteger additions = new AtomicInteger();
+    private final int width;
+    private final int sampleSize;
+
+    FrequencySketch(final int width, final int sampleSize) {
+        this.width = width <= 16 ? 16 : Integer.highestOneBit(width - 1) << 1;
+        this.sampleSize = sampleSize;
+        this.table = new AtomicIntegerArray(this.width * DEPTH);
+    }
+
+    void increment(final String key) {
+        final int hash = spread(key.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            table.incrementAndGet(index(hash, row));
+        }
+        final int current = additions.incrementAndGet();
+        if (current >= sampleSize && additions.compareAndSet(current, current >>> 1)) {
+            age();
+        }
+    }
+
+    int frequency(final String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, table.get(index(hash, row)));
+        }
+        return frequency;
+    }
+
+    void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, 0);
+        }
+        additions.set(0);
+    }
+
+    private void age() {
+        for (int i = 0; i < table.length(); i++) {
+            int value;
+            do {
+                value = table.get(i);
+            } while (!table.compareAndSet(i, value, value >>> 1));
+        }
+    }
+
+    private int index(final int hash, final int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private static int spread(final int hash) {
+        final int h = hash * 0x7FEB352D;
+        return h ^ (h >>> 15);
+    }
+}
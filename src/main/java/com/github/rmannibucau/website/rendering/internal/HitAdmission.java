@@ -0,0 +1,81 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Admits a page for rendering once it was requested {@code hits} times in a sliding window.
+ * The window is approximated with two count-min sketches, the current and previous fixed windows,
+ * the previous one being weighted by the part of it still covered by the sliding window.
+ */
+class HitAdmission {
+    private final int hits;
+    private final long window;
+    private final LongSupplier clock;
+    private final int width;
+    private volatile State state;
+
+    HitAdmission(final int hits, final long window, final int width, final LongSupplier clock) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        this.hits = hits;
+        this.window = window;
+        this.width = width;
+        this.clock = clock;
+        this.state = new State(clock.getAsLong(), new FrequencySketch(width, Integer.MAX_VALUE), null);
+    }
+
+    /**
+     * @param key the requested page.
+     * @return true if the page was requested (including this time) enough times in the window to be rendered.
+     */
+    boolean admit(final String key) {
+        final long now = clock.getAsLong();
+        final State current = rotate(now);
+        current.sketch.increment(key);
+        final int frequency = current.sketch.frequency(key);
+        if (frequency >= hits || current.previous == null) {
+            return frequency >= hits;
+        }
+        final double previousWeight = 1 - Math.min(1, (now - current.start) / (double) window);
+        return frequency + previousWeight * current.previous.frequency(key) >= hits;
+    }
+
+    // a few increments racing with a rotation can be lost, it only delays the admission
+    private State rotate(final long now) {
+        State current = state;
+        if (now - current.start < window) {
+            return current;
+        }
+        synchronized (this) {
+            current = state;
+            final long elapsed = now - current.start;
+            if (elapsed < window) {
+                return current;
+            }
+            final long start = current.start + elapsed / window * window;
+            if (elapsed >= 2 * window) { // idle for more than a window, nothing to keep
+                current.sketch.clear();
+                current = new State(start, current.sketch, null);
+            } else {
+                final FrequencySketch next = current.previous == null ? new FrequencySketch(width, Integer.MAX_VALUE) : current.previous;
+                next.clear();
+                current = new State(start, next, current.sketch);
+            }
+            state = current;
+            return current;
+        }
+    }
+
+    private static final class State {
+        private final long start;
+        private final FrequencySketch sketch;
+        private final FrequencySketch previous;
+
+        private State(final long start, final FrequencySketch sketch, final FrequencySketch previous) {
+            this.start = start;
+            this.sketch = sketch;
+            this.previous = previous;
+        }
+    }
+}
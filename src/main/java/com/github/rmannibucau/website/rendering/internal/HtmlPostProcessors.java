@@ -0,0 +1,229 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Comparator.comparingInt;
+import static java.util.Locale.ROOT;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlPostProcessor;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Chain of {@link HtmlPostProcessor} applied to the captured pages before they are cached.
+ * The built-in processors scan the page once each and never touch the content of the
+ * {@code script}, {@code style}, {@code pre} and {@code textarea} elements nor the quoted attribute values.
+ */
+@ApplicationScoped
+public class HtmlPostProcessors {
+    private static final Logger LOGGER = Logger.getLogger(HtmlPostProcessors.class.getName());
+
+    // elements whose content is kept as is
+    private static final String[] RAW_ELEMENTS = {"script", "style", "pre", "textarea"};
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.postprocessors")
+    private Optional<String> builtIns;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.bots.routing", defaultValue = "all")
+    private String botsRouting;
+
+    @Inject
+    @Any
+    private Instance<HtmlPostProcessor> processors;
+
+    private List<BiFunction<String, String, String>> chain;
+
+    @PostConstruct
+    private void init() {
+        chain = new ArrayList<>();
+        builtIns.ifPresent(value -> Stream.of(value.split(","))
+                .map(it -> it.trim().toLowerCase(ROOT))
+                .filter(it -> !it.isEmpty())
+                .forEach(name -> {
+                    switch (name) {
+                        case "strip-scripts": // the cached pages are shared, only bots can get them without scripts
+                            if (!"bots".equalsIgnoreCase(botsRouting.trim())) {
+                                throw new IllegalArgumentException("strip-scripts requires rmannibucau.website.rendering.web.bots.routing=bots, " +
+                                        "other clients would get the cached pages without the application scripts");
+                            }
+                            chain.add((url, html) -> stripScripts(html));
+                            break;
+                        case "remove-comments":
+                            chain.add((url, html) -> minify(html, true, false));
+                            break;
+                        case "collapse-whitespace":
+                            chain.add((url, html) -> minify(html, false, true));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unsupported post processor: " + name);
+                    }
+                }));
+        StreamSupport.stream(processors.spliterator(), false)
+                .sorted(comparingInt(HtmlPostProcessor::order))
+                .collect(toList())
+                .forEach(processor -> chain.add(processor::process));
+    }
+
+    /**
+     * @param url the rendered url.
+     * @param html the captured page.
+     * @return the page to cache, a failing processor is skipped.
+     */
+    public String process(final String url, final String html) {
+        String current = html;
+        for (final BiFunction<String, String, String> processor : chain) {
+            try {
+                final String processed = processor.apply(url, current);
+                if (processed != null) {
+                    current = processed;
+                }
+            } catch (final RuntimeException re) {
+                LOGGER.log(WARNING, "Post processing of " + url + " failed: " + re.getMessage(), re);
+            }
+        }
+        return current;
+    }
+
+    // removes the scripts but the structured data (JSON-LD) crawlers read
+    static String stripScripts(final String html) {
+        final StringBuilder out = new StringBuilder(html.length());
+        int from = 0;
+        int start;
+        while ((start = findOpeningTag(html, "script", from)) >= 0) {
+            final int openingEnd = html.indexOf('>', start);
+            if (openingEnd < 0) {
+                break;
+            }
+            final int end = findElementEnd(html, "script", openingEnd + 1);
+            out.append(html, from, start);
+            if (html.substring(start, openingEnd).toLowerCase(ROOT).contains("application/ld+json")) {
+                out.append(html, start, end);
+            }
+            from = end;
+        }
+        return out.append(html, from, html.length()).toString();
+    }
+
+    // removes the comments (but conditional ones) and/or replaces the whitespace sequences by a single character
+    static String minify(final String html, final boolean removeComments, final boolean collapseWhitespace) {
+        final StringBuilder out = new StringBuilder(html.length());
+        final int length = html.length();
+        int i = 0;
+        while (i < length) {
+            final char c = html.charAt(i);
+            if (c == '<') {
+                final String raw = findRawElement(html, i);
+                if (raw != null) {
+                    final int end = findElementEnd(html, raw, i + 1);
+                    out.append(html, i, end);
+                    i = end;
+                    continue;
+                }
+                if (removeComments && html.startsWith("<!--", i) && !html.startsWith("<!--[if", i)) {
+                    final int end = html.indexOf("-->", i + 4);
+                    i = end < 0 ? length : end + 3;
+                    continue;
+                }
+                if (i + 1 < length && (Character.isLetter(html.charAt(i + 1)) || html.charAt(i + 1) == '/')) {
+                    i = appendTag(out, html, i, collapseWhitespace);
+                    continue;
+                }
+            } else if (collapseWhitespace && Character.isWhitespace(c)) {
+                boolean newLine = false;
+                while (i < length && Character.isWhitespace(html.charAt(i))) {
+                    newLine |= html.charAt(i) == '\n';
+                    i++;
+                }
+                out.append(newLine ? '\n' : ' ');
+                continue;
+            }
+            out.append(c);
+            i++;
+        }
+        return out.toString();
+    }
+
+    // copies a tag, the quoted attribute values are kept as is, returns the index after the tag
+    private static int appendTag(final StringBuilder out, final String html, final int start, final boolean collapseWhitespace) {
+        final int length = html.length();
+        char quote = 0;
+        int i = start;
+        while (i < length) {
+            final char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                out.append(c);
+                return i + 1;
+            } else if (collapseWhitespace && Character.isWhitespace(c)) {
+                while (i + 1 < length && Character.isWhitespace(html.charAt(i + 1))) {
+                    i++;
+                }
+                out.append(' ');
+                i++;
+                continue;
+            }
+            out.append(c);
+            i++;
+        }
+        return length;
+    }
+
+    private static String findRawElement(final String html, final int index) {
+        for (final String element : RAW_ELEMENTS) {
+            if (isOpeningTag(html, element, index)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static int findOpeningTag(final String html, final String name, final int from) {
+        int index = html.indexOf('<', from);
+        while (index >= 0 && !isOpeningTag(html, name, index)) {
+            index = html.indexOf('<', index + 1);
+        }
+        return index;
+    }
+
+    private static boolean isOpeningTag(final String html, final String name, final int index) {
+        final int next = index + 1 + name.length();
+        return html.regionMatches(true, index + 1, name, 0, name.length())
+                && next < html.length() && (html.charAt(next) == '>' || html.charAt(next) == '/' || Character.isWhitespace(html.charAt(next)));
+    }
+
+    // index after the closing tag of the element, end of the page if not closed
+    private static int findElementEnd(final String html, final String name, final int from) {
+        int index = html.indexOf("</", from);
+        while (index >= 0) {
+            final int next = index + 2 + name.length();
+            if (html.regionMatches(true, index + 2, name, 0, name.length())
+                    && (next >= html.length() || html.charAt(next) == '>' || Character.isWhitespace(html.charAt(next)))) {
+                final int end = html.indexOf('>', index);
+                return end < 0 ? html.length() : end + 1;
+            }
+            index = html.indexOf("</", index + 2);
+        }
+        return html.length();
+    }
+}
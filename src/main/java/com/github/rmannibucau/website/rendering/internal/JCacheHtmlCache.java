@@ -1,12 +1,24 @@
 package com.github.rmannibucau.website.rendering.internal;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.StringReader;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -14,6 +26,8 @@ import javax.cache.Cache;
 import javax.cache.CacheManager;
 import javax.cache.Caching;
 import javax.cache.configuration.MutableConfiguration;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.MutableEntry;
 import javax.cache.spi.CachingProvider;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Instance;
@@ -56,16 +70,29 @@ public class JCacheHtmlCache implements HtmlCache {
     @ConfigProperty(name = "rmannibucau.website.rendering.cache.configuration.properties")
     private Optional<String> cacheConfigProperties;
 
+    @Inject
+    private ContentEncodings contentEncodings;
+
+    @Inject
+    private PageTags pageTags;
+
     private Cache<String, String> cache;
+    private Cache<String, Long> timestamps; // render date of the pages
+    private Cache<String, String> hashes; // ETag of the pages
+    private Cache<String, String> tags; // tags of the pages having some
+    private Cache<String, String> taggedKeys; // keys of the pages having a tag, one per line
+    private Cache<String, byte[]> encoded; // precomputed content encodings, keys are "<encoding>|<page key>"
     private CachingProvider provider;
+    private CacheManager manager;
 
     @PostConstruct
     private void init() {
+        final MutableConfiguration<String, String> configuration = createConfiguration();
         if (cacheManager.isResolvable()) {
-            cache = cacheManager.get().createCache(cacheName, createConfiguration());
+            manager = cacheManager.get();
         } else {
             provider = Caching.getCachingProvider(Thread.currentThread().getContextClassLoader());
-            final CacheManager manager = provider.getCacheManager(
+            manager = provider.getCacheManager(
                     cacheConfigUri.map(URI::create).orElseGet(provider::getDefaultURI),
                     Thread.currentThread().getContextClassLoader(),
                     cacheConfigProperties.map(props -> {
@@ -77,17 +104,51 @@ public class JCacheHtmlCache implements HtmlCache {
                             throw new IllegalArgumentException(e);
                         }
                     }).orElseGet(provider::getDefaultProperties));
-            cache = manager.createCache(cacheName, createConfiguration());
+        }
+        cache = manager.createCache(cacheName, configuration);
+        timestamps = manager.createCache(cacheName + ".timestamps", new MutableConfiguration<String, Long>()
+                .setTypes(String.class, Long.class)
+                .setStoreByValue(false)
+                .setExpiryPolicyFactory(configuration.getExpiryPolicyFactory()));
+        hashes = manager.createCache(cacheName + ".hashes", new MutableConfiguration<String, String>()
+                .setTypes(String.class, String.class)
+                .setStoreByValue(false)
+                .setExpiryPolicyFactory(configuration.getExpiryPolicyFactory()));
+        tags = manager.createCache(cacheName + ".tags", new MutableConfiguration<String, String>()
+                .setTypes(String.class, String.class)
+                .setStoreByValue(false)
+                .setExpiryPolicyFactory(configuration.getExpiryPolicyFactory()));
+        taggedKeys = manager.createCache(cacheName + ".tags.index", new MutableConfiguration<String, String>()
+                .setTypes(String.class, String.class)
+                .setStoreByValue(false));
+        if (contentEncodings.isEnabled()) {
+            encoded = manager.createCache(cacheName + ".encoded", new MutableConfiguration<String, byte[]>()
+                    .setTypes(String.class, byte[].class)
+                    .setStoreByValue(false)
+                    .setExpiryPolicyFactory(configuration.getExpiryPolicyFactory()));
         }
     }
 
     @PreDestroy
     private void destroy() {
         cache.close();
+        timestamps.close();
+        hashes.close();
+        tags.close();
+        taggedKeys.close();
+        ofNullable(encoded).ifPresent(Cache::close);
         // no need to close the manager, if provided it is managed by the user, if not the provider#close will do it
         ofNullable(provider).ifPresent(CachingProvider::close);
     }
 
+    CacheManager getCacheManager() {
+        return manager;
+    }
+
+    String getCacheName() {
+        return cacheName;
+    }
+
     @Override
     public String get(final String key) {
         return cache.get(key);
@@ -95,14 +156,140 @@ public class JCacheHtmlCache implements HtmlCache {
 
     @Override
     public boolean putIfAbsent(final String key, final String html) {
-        return cache.putIfAbsent(key, html);
+        if (cache.putIfAbsent(key, html)) {
+            timestamps.put(key, System.currentTimeMillis());
+            hashes.put(key, ContentEncodings.hash(html));
+            putTags(key, html);
+            putEncoded(key, html);
+            return true;
+        }
+        return false;
     }
 
     @Override
     public boolean invalidate(final String key) {
+        timestamps.remove(key);
+        hashes.remove(key);
+        updateTagIndex(key, PageTags.split(tags.getAndRemove(key)), emptySet());
+        if (encoded != null) {
+            encoded.removeAll(contentEncodings.getEncodings().stream().map(it -> toEncodedKey(it, key)).collect(toSet()));
+        }
         return cache.remove(key);
     }
 
+    @Override
+    public Entry getEntry(final String key) {
+        final String html = cache.get(key);
+        if (html == null) {
+            return null;
+        }
+        final Long timestamp = timestamps.get(key);
+        if (encoded == null) {
+            return new Entry(html, timestamp == null ? -1 : timestamp, emptyMap(), hashes.get(key));
+        }
+        return new Entry(html, timestamp == null ? -1 : timestamp, emptyMap(), hashes.get(key)) { // only fetch the negotiated encoding
+            @Override
+            public Collection<String> getEncodings() {
+                return contentEncodings.getEncodings();
+            }
+
+            @Override
+            public byte[] getEncoded(final String encoding) {
+                return encoded.get(toEncodedKey(encoding, key));
+            }
+        };
+    }
+
+    @Override
+    public boolean put(final String key, final String html) {
+        cache.put(key, html);
+        timestamps.put(key, System.currentTimeMillis());
+        hashes.put(key, ContentEncodings.hash(html));
+        putTags(key, html);
+        putEncoded(key, html);
+        return true;
+    }
+
+    // no key listing in JCache, the timestamps cache is fully iterated, it is fine for administration operations
+    @Override
+    public Collection<String> getKeysByPrefix(final String prefix) {
+        final Collection<String> keys = new ArrayList<>();
+        for (final Cache.Entry<String, Long> entry : timestamps) {
+            if (entry.getKey().startsWith(prefix)) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    // the index can reference expired pages, they are filtered and dropped from the index
+    @Override
+    public Collection<String> getKeysByTag(final String tag) {
+        final String indexed = taggedKeys.get(tag);
+        if (indexed == null) {
+            return new ArrayList<>();
+        }
+        final Set<String> keys = new LinkedHashSet<>(asList(indexed.split("\n")));
+        final Set<String> cached = timestamps.getAll(keys).keySet();
+        keys.stream().filter(it -> !cached.contains(it)).forEach(it -> taggedKeys.invoke(tag, new TagIndexUpdate(it, false)));
+        keys.retainAll(cached);
+        return keys;
+    }
+
+    private void putTags(final String key, final String html) {
+        final Collection<String> pageTags = this.pageTags.extract(html);
+        final String previous = pageTags.isEmpty() ? tags.getAndRemove(key) : tags.getAndPut(key, PageTags.join(pageTags));
+        updateTagIndex(key, PageTags.split(previous), pageTags);
+    }
+
+    private void updateTagIndex(final String key, final Collection<String> previous, final Collection<String> current) {
+        final Set<String> removed = new HashSet<>(previous);
+        removed.removeAll(current);
+        removed.forEach(tag -> taggedKeys.invoke(tag, new TagIndexUpdate(key, false)));
+        current.stream()
+                .filter(tag -> !previous.contains(tag))
+                .forEach(tag -> taggedKeys.invoke(tag, new TagIndexUpdate(key, true)));
+    }
+
+    private void putEncoded(final String key, final String html) {
+        if (encoded != null) {
+            encoded.putAll(contentEncodings.encode(html).entrySet().stream()
+                    .collect(toMap(e -> toEncodedKey(e.getKey(), key), Map.Entry::getValue)));
+        }
+    }
+
+    private String toEncodedKey(final String encoding, final String key) {
+        return encoding + '|' + key;
+    }
+
+    // runs where the entry is stored so concurrent updates of a tag don't lose keys
+    private static final class TagIndexUpdate implements EntryProcessor<String, String, Void>, Serializable {
+        private final String key;
+        private final boolean add;
+
+        private TagIndexUpdate(final String key, final boolean add) {
+            this.key = key;
+            this.add = add;
+        }
+
+        @Override
+        public Void process(final MutableEntry<String, String> entry, final Object... arguments) {
+            final Set<String> keys = new LinkedHashSet<>();
+            if (entry.exists()) {
+                keys.addAll(asList(entry.getValue().split("\n")));
+            }
+            if (!(add ? keys.add(key) : keys.remove(key))) {
+                return null;
+            }
+            if (keys.isEmpty()) {
+                entry.remove();
+            } else {
+                entry.setValue(String.join("\n", keys));
+            }
+            return null;
+        }
+    }
+
     private MutableConfiguration<String, String> createConfiguration() {
         if (cacheConfiguration.isResolvable()) {
             return cacheConfiguration.get();
@@ -0,0 +1,75 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.cache.Cache;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.CreatedExpiryPolicy;
+import javax.cache.expiry.Duration;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.spi.RenderingLease;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Leases stored in a cache of the {@link JCacheHtmlCache} cache manager, {@code putIfAbsent} elects the rendering node
+ * and the expiry frees the leases of the nodes which stopped (or crashed) while rendering.
+ */
+@ApplicationScoped
+@Typed(JCacheRenderingLease.class)
+public class JCacheRenderingLease implements RenderingLease {
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.lease.duration", defaultValue = "30000")
+    private Long duration;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.lease.node")
+    private Optional<String> configuredNode;
+
+    @Inject
+    private JCacheHtmlCache htmlCache;
+
+    private Cache<String, String> leases; // value is the owner node
+    private String node;
+
+    public JCacheRenderingLease() {
+        // no-op
+    }
+
+    JCacheRenderingLease(final Cache<String, String> leases, final String node) {
+        this.leases = leases;
+        this.node = node;
+    }
+
+    @PostConstruct
+    private void init() {
+        node = configuredNode.orElseGet(() -> UUID.randomUUID().toString());
+        leases = htmlCache.getCacheManager().createCache(htmlCache.getCacheName() + ".leases", new MutableConfiguration<String, String>()
+                .setTypes(String.class, String.class)
+                .setStoreByValue(false)
+                .setExpiryPolicyFactory(CreatedExpiryPolicy.factoryOf(new Duration(MILLISECONDS, duration))));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        leases.close();
+    }
+
+    @Override
+    public boolean tryAcquire(final String url) {
+        return leases.putIfAbsent(url, node);
+    }
+
+    @Override
+    public void release(final String url) {
+        leases.remove(url, node); // an expired lease can be owned by another node now
+    }
+}
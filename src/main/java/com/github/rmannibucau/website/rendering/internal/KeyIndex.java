@@ -0,0 +1,62 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptySet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In memory secondary index of the cached pages: the keys are sorted to find them by prefix
+ * and the pages are indexed by tag. Updates of a key must be serialized by the caller.
+ */
+class KeyIndex {
+    private final ConcurrentNavigableMap<String, Collection<String>> keys = new ConcurrentSkipListMap<>(); // key -> tags
+    private final ConcurrentMap<String, Set<String>> tags = new ConcurrentHashMap<>(); // tag -> keys
+
+    void put(final String key, final Collection<String> pageTags) {
+        final Collection<String> previous = keys.put(key, pageTags);
+        if (previous != null) {
+            previous.stream().filter(tag -> !pageTags.contains(tag)).forEach(tag -> untag(tag, key));
+        }
+        pageTags.forEach(tag -> tags.compute(tag, (name, values) -> {
+            final Set<String> result = values == null ? ConcurrentHashMap.newKeySet() : values;
+            result.add(key);
+            return result;
+        }));
+    }
+
+    void remove(final String key) {
+        final Collection<String> previous = keys.remove(key);
+        if (previous != null) {
+            previous.forEach(tag -> untag(tag, key));
+        }
+    }
+
+    Collection<String> byPrefix(final String prefix) {
+        final Collection<String> result = new ArrayList<>();
+        for (final Map.Entry<String, Collection<String>> entry : keys.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    Collection<String> byTag(final String tag) {
+        return new ArrayList<>(tags.getOrDefault(tag, emptySet()));
+    }
+
+    private void untag(final String tag, final String key) {
+        tags.computeIfPresent(tag, (name, values) -> {
+            values.remove(key);
+            return values.isEmpty() ? null : values;
+        });
+    }
+}
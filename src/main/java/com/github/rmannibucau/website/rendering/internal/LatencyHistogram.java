@@ -0,0 +1,97 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with log-linear buckets (each power of two is split in 8 buckets)
+ * so the percentiles are precise to 12.5% whatever the magnitude, recording is a few atomic increments.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the measured duration.
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        buckets.incrementAndGet(index(value));
+        count.increment();
+        total.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * @param start the {@link System#nanoTime()} at the beginning of the measured operation.
+     */
+    public void recordSince(final long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long samples = count.sum();
+        return samples == 0 ? 0 : total.sum() / (double) samples;
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 1, for instance 0.99.
+     * @return the upper bound (nanoseconds) of the bucket containing the percentile.
+     */
+    public long getPercentile(final double percentile) {
+        final long[] snapshot = new long[buckets.length()];
+        long samples = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = buckets.get(i);
+            samples += snapshot[i];
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, percentile)) * samples));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(max.get(), upperBound(i));
+            }
+        }
+        return max.get();
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        final long lowerBound = (1L << exponent) | ((index % SUB_BUCKETS) * width);
+        return lowerBound + width - 1;
+    }
+}
@@ -1,15 +1,53 @@
 package com.github.rmannibucau.website.rendering.internal;
 
+import static java.util.Comparator.comparingLong;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
@@ -21,52 +59,716 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 @ApplicationScoped
 @Typed(LocalFileSystemHtmlCache.class)
 public class LocalFileSystemHtmlCache implements HtmlCache {
+    private static final Logger LOGGER = Logger.getLogger(LocalFileSystemHtmlCache.class.getName());
+
+    private static final int LOCK_STRIPES = 64;
+    private static final String INDEX_FILE = "index";
+    private static final String LAYOUT_FILE = "layout"; // fanout the pages are stored with
+    private static final int INDEX_MAGIC = 0x57524931; // WRI1
+    private static final long ACCESS_RESOLUTION = 1000; // ms
+    private static final String PAGE_EXTENSION = ".html";
+    private static final String HASH_EXTENSION = ".hash";
+    private static final String META_EXTENSION = ".meta"; // normalized key and tags of the page
+    private static final int ID_LENGTH = 64; // hex sha-256
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Pattern STORED_FILE = Pattern.compile("[0-9a-f]{" + ID_LENGTH + "}\\" + PAGE_EXTENSION + "(\\..+)?");
+    private static final Pattern SHARD_DIRECTORY = Pattern.compile("[0-9a-f]{2}");
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     @Inject
     @ConfigProperty(name = "rmannibucau.website.rendering.cache.directory")
     private Optional<String> directory;
 
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.fanout", defaultValue = "2")
+    private Integer fanout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.query.parameters")
+    private Optional<String> queryParameters;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.index", defaultValue = "true")
+    private Boolean useIndex;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.maxBytes", defaultValue = "0")
+    private Long maxBytes;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.maxEntries", defaultValue = "0")
+    private Long maxEntries;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.file.maxAge", defaultValue = "0")
+    private Long maxAge;
+
+    @Inject
+    private ContentEncodings contentEncodings;
+
+    @Inject
+    private PageTags pageTags;
+
     private File root;
+    private Collection<String> encodings;
+    private Predicate<String> queryParameterFilter;
+
+    // cached pages by id, avoids to hit the file system for misses and drives the eviction
+    private ConcurrentMap<String, IndexEntry> index;
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    private ScheduledExecutorService evictor;
+    private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+
+    // the keys can't be computed back from the file names, loaded from the meta files on the first bulk invalidation
+    private final KeyIndex keys = new KeyIndex();
+    private volatile boolean keysLoaded;
+
+    // writes of a page are serialized, unrelated pages only rarely share a lock
+    private final Object[] locks = new Object[LOCK_STRIPES];
 
     @PostConstruct
     private void init() {
         root = new File(directory.orElseThrow(
                 () -> new IllegalArgumentException("No directory set, please configure rmannibucau.website.rendering.cache.directory")));
+        if (fanout < 0 || fanout > 8) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.cache.file.fanout must be between 0 and 8");
+        }
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        // the page file is the UTF-8 page so identity is always available
+        encodings = Stream.concat(Stream.of(ContentEncodings.IDENTITY), contentEncodings.getEncodings().stream())
+                .distinct()
+                .collect(toList());
+        queryParameterFilter = queryParameters
+                .map(value -> {
+                    final Set<String> names = Stream.of(value.split(","))
+                            .map(String::trim)
+                            .filter(it -> !it.isEmpty())
+                            .collect(toSet());
+                    return names.contains("*") ? (Predicate<String>) name -> true : (Predicate<String>) names::contains;
+                })
+                .orElse(name -> false);
+        final boolean bounded = maxBytes > 0 || maxEntries > 0 || maxAge > 0;
+        if (bounded && !useIndex) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.cache.file.index can't be disabled with a size or age limit");
+        }
+        checkLayout();
+        if (useIndex) {
+            index = new ConcurrentHashMap<>();
+            if (!loadIndex()) {
+                rebuildIndex();
+            }
+        }
+        if (bounded) {
+            evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, LocalFileSystemHtmlCache.class.getSimpleName() + "-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (maxAge > 0) {
+                final long period = Math.max(ACCESS_RESOLUTION, Math.min(maxAge, 60000));
+                evictor.scheduleWithFixedDelay(this::evict, period, period, MILLISECONDS);
+            }
+            if (isOverBudget()) {
+                scheduleEviction();
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        if (index != null) {
+            storeIndex();
+        }
+    }
+
+    public long getEntries() {
+        return index == null ? -1 : index.size();
+    }
+
+    public long getBytes() {
+        return index == null ? -1 : bytes.get();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
     }
 
     @Override
     public String get(final String key) {
-        final File cacheFile = getCacheFile(key);
-        try {
-            return cacheFile.exists() ?
-                    Files.readAllLines(cacheFile.toPath()).stream().collect(joining("\n")) :
-                    null;
-        } catch (final IOException e) {
+        final Entry entry = getEntry(key);
+        return entry == null ? null : entry.getHtml();
+    }
+
+    @Override
+    public Entry getEntry(final String key) {
+        final String id = toId(key);
+        final IndexEntry indexEntry = index == null ? null : index.get(id);
+        if (index != null) {
+            if (indexEntry == null) {
+                return null;
+            }
+            final long now = System.currentTimeMillis();
+            if (expire(id, indexEntry, now)) {
+                return null;
+            }
+            if (now - indexEntry.lastAccess > ACCESS_RESOLUTION) { // don't write a shared field on each hit
+                indexEntry.lastAccess = now;
+            }
+        }
+        final File cacheFile = toFile(id);
+        if (!cacheFile.exists()) {
+            if (indexEntry != null) { // deleted behind our back
+                remove(id, indexEntry);
+            }
             return null;
         }
+        final long lastModified = cacheFile.lastModified();
+        return new Entry(null, lastModified) { // only read what is served
+            @Override
+            public String getHtml() {
+                final byte[] bytes = getEncoded(ContentEncodings.IDENTITY);
+                return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            @Override // the hash is written after the page, an older one is the hash of the previous page
+            public String getHash() {
+                final File file = getHashFile(cacheFile);
+                try {
+                    return file.exists() && file.lastModified() >= lastModified ?
+                            new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII) : null;
+                } catch (final IOException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public Collection<String> getEncodings() {
+                return encodings;
+            }
+
+            @Override
+            public byte[] getEncoded(final String encoding) {
+                final File file = getEncodedFile(cacheFile, encoding);
+                try {
+                    return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+                } catch (final IOException e) {
+                    return null;
+                }
+            }
+
+            // streamed in chunks, never decoded nor fully loaded; the servlet stream is not a channel
+            // so transferTo copies through a buffer, it is not a kernel (sendfile) copy
+            @Override
+            public boolean writeTo(final String encoding, final Sink sink) throws IOException {
+                final FileChannel channel;
+                try {
+                    channel = FileChannel.open(getEncodedFile(cacheFile, encoding).toPath(), StandardOpenOption.READ);
+                } catch (final NoSuchFileException nsfe) {
+                    return false;
+                }
+                try {
+                    final long size = channel.size();
+                    final WritableByteChannel output = Channels.newChannel(sink.open(size));
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, output);
+                    }
+                    return true;
+                } finally {
+                    channel.close();
+                }
+            }
+        };
     }
 
     @Override
     public boolean putIfAbsent(final String key, final String html) {
-        final File cacheFile = getCacheFile(key);
-        if (!cacheFile.getParentFile().exists() && !cacheFile.getParentFile().mkdirs()) {
+        return store(key, html, false);
+    }
+
+    @Override
+    public boolean put(final String key, final String html) {
+        return store(key, html, true);
+    }
+
+    @Override
+    public boolean invalidate(final String key) {
+        return remove(toId(key), null);
+    }
+
+    @Override
+    public Collection<String> getKeysByPrefix(final String prefix) {
+        loadKeys();
+        return keys.byPrefix(prefix);
+    }
+
+    @Override
+    public Collection<String> getKeysByTag(final String tag) {
+        loadKeys();
+        return keys.byTag(tag);
+    }
+
+    // expected is the entry to remove, null to remove whatever is cached
+    private boolean remove(final String id, final IndexEntry expected) {
+        final File file = toFile(id);
+        synchronized (lockFor(id)) {
+            if (index != null) {
+                final IndexEntry removed = index.get(id);
+                if (expected != null && removed != expected) {
+                    return false; // replaced meanwhile
+                }
+                if (removed != null) {
+                    index.remove(id);
+                    bytes.addAndGet(-removed.bytes);
+                }
+            }
+            contentEncodings.getEncodings().stream()
+                    .filter(it -> !ContentEncodings.IDENTITY.equals(it))
+                    .map(it -> getEncodedFile(file, it))
+                    .filter(File::exists)
+                    .forEach(File::delete);
+            final File hash = getHashFile(file);
+            if (hash.exists() && !hash.delete()) {
+                LOGGER.log(WARNING, "Can't delete " + hash);
+            }
+            final File meta = getMetaFile(file);
+            final String[] keyAndTags = readMeta(meta);
+            if (keyAndTags != null) {
+                keys.remove(keyAndTags[0]);
+                if (!meta.delete()) {
+                    LOGGER.log(WARNING, "Can't delete " + meta);
+                }
+            }
+            return file.exists() && file.delete();
+        }
+    }
+
+    private boolean store(final String key, final String html, final boolean replace) {
+        final String id = toId(key);
+        final File cacheFile = toFile(id);
+        if (!replace) {
+            final IndexEntry existing = index != null ? index.get(id) : null;
+            if (index != null ? existing != null && !expire(id, existing, System.currentTimeMillis()) : cacheFile.exists()) {
+                return false;
+            }
+        }
+        if (!cacheFile.getParentFile().exists() && !cacheFile.getParentFile().mkdirs() && !cacheFile.getParentFile().isDirectory()) {
             throw new IllegalStateException("Can't create " + cacheFile);
         }
+
+        // encode outside the lock, it can be slow for big pages
+        final Map<String, byte[]> encoded = contentEncodings.encode(html);
+        final byte[] page = encoded.containsKey(ContentEncodings.IDENTITY) ?
+                encoded.get(ContentEncodings.IDENTITY) : html.getBytes(StandardCharsets.UTF_8);
+        final byte[] hash = ContentEncodings.hash(html).getBytes(StandardCharsets.US_ASCII);
+        final String normalizedKey = normalize(key);
+        final Collection<String> tags = pageTags.extract(html);
+        final byte[] meta = (normalizedKey + '\n' + PageTags.join(tags)).getBytes(StandardCharsets.UTF_8);
+        synchronized (lockFor(id)) {
+            if (!replace && cacheFile.exists()) {
+                return false;
+            }
+            long size = page.length;
+            try {
+                for (final Map.Entry<String, byte[]> encoding : encoded.entrySet()) {
+                    if (!ContentEncodings.IDENTITY.equals(encoding.getKey())) {
+                        write(getEncodedFile(cacheFile, encoding.getKey()), encoding.getValue());
+                        size += encoding.getValue().length;
+                    }
+                }
+                write(getMetaFile(cacheFile), meta);
+                // its presence means the page is cached
+                write(cacheFile, page);
+                // after the page so a hash at least as recent as the page is its hash
+                write(getHashFile(cacheFile), hash);
+            } catch (final IOException e) {
+                return false;
+            }
+            if (index != null) {
+                final long now = System.currentTimeMillis();
+                final IndexEntry previous = index.put(id, new IndexEntry(size, now, now));
+                bytes.addAndGet(previous == null ? size : size - previous.bytes);
+            }
+            keys.put(normalizedKey, tags);
+        }
+        if (evictor != null && isOverBudget()) {
+            scheduleEviction();
+        }
+        return true;
+    }
+
+    // an expired page is deleted as soon as it is seen, the evictor only reclaims the ones nobody asks for anymore
+    private boolean expire(final String id, final IndexEntry entry, final long now) {
+        if (maxAge <= 0 || now - entry.creation <= maxAge) {
+            return false;
+        }
+        evict(id, entry);
+        return true;
+    }
+
+    private boolean isOverBudget() {
+        return (maxBytes > 0 && bytes.get() > maxBytes) || (maxEntries > 0 && index.size() > maxEntries);
+    }
+
+    private void scheduleEviction() {
+        if (evictionScheduled.compareAndSet(false, true)) {
+            try {
+                evictor.execute(this::evict);
+            } catch (final RuntimeException re) { // shutting down
+                evictionScheduled.set(false);
+            }
+        }
+    }
+
+    private void evict() {
+        evictionScheduled.set(false);
         try {
-            Files.write(cacheFile.toPath(), html.getBytes(StandardCharsets.UTF_8),
-                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            if (maxAge > 0) {
+                final long now = System.currentTimeMillis();
+                index.forEach((id, entry) -> {
+                    if (now - entry.creation > maxAge) {
+                        evict(id, entry);
+                    }
+                });
+            }
+            if (!isOverBudget()) {
+                return;
+            }
+
+            // go 10% under the limits to not run an eviction for each new page,
+            // the access times are captured since they can change while sorting
+            final long targetBytes = maxBytes > 0 ? maxBytes - maxBytes / 10 : Long.MAX_VALUE;
+            final long targetEntries = maxEntries > 0 ? maxEntries - maxEntries / 10 : Long.MAX_VALUE;
+            final List<Candidate> candidates = new ArrayList<>(index.size());
+            index.forEach((id, entry) -> candidates.add(new Candidate(id, entry)));
+            candidates.sort(comparingLong(it -> it.lastAccess));
+            for (final Candidate candidate : candidates) {
+                if (bytes.get() <= targetBytes && index.size() <= targetEntries) {
+                    break;
+                }
+                evict(candidate.id, candidate.entry);
+            }
+        } catch (final RuntimeException re) {
+            LOGGER.log(WARNING, "Eviction failed: " + re.getMessage(), re);
+        }
+    }
+
+    private void evict(final String id, final IndexEntry entry) {
+        if (remove(id, entry)) {
+            evictions.increment();
+            reclaimedBytes.add(entry.bytes);
+        }
+    }
+
+    // the index is saved on shutdown and consumed at startup, if the process crashed it is rebuilt from the files
+    private boolean loadIndex() {
+        final File file = new File(root, INDEX_FILE);
+        if (!file.isFile()) {
+            return false;
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != fanout) {
+                return false;
+            }
+            final int count = in.readInt();
+            final byte[] hash = new byte[ID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                in.readFully(hash);
+                final IndexEntry entry = new IndexEntry(in.readLong(), in.readLong(), in.readLong());
+                index.put(toHex(hash), entry);
+                bytes.addAndGet(entry.bytes);
+            }
             return true;
-        } catch (final IOException e) {
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.log(WARNING, "Can't read " + file + ", rebuilding the index: " + e.getMessage());
+            index.clear();
+            bytes.set(0);
             return false;
+        } finally {
+            if (!file.delete()) {
+                LOGGER.log(WARNING, "Can't delete " + file + ", it will be outdated at next restart if the process crashes");
+            }
         }
     }
 
-    @Override
-    public boolean invalidate(final String key) {
-        final File file = getCacheFile(key);
-        return file.exists() && file.delete();
+    // pages stored with another fanout would never be found nor evicted anymore, they are moved to the current layout
+    private void checkLayout() {
+        final File layout = new File(root, LAYOUT_FILE);
+        final String current = Integer.toString(fanout);
+        try {
+            if (layout.isFile() && current.equals(new String(Files.readAllBytes(layout.toPath()), StandardCharsets.US_ASCII).trim())) {
+                return;
+            }
+            if (!root.isDirectory() && !root.mkdirs()) {
+                throw new IllegalStateException("Can't create " + root);
+            }
+            relayout();
+            write(layout, current.getBytes(StandardCharsets.US_ASCII));
+        } catch (final IOException e) {
+            LOGGER.log(WARNING, "Can't check the layout of " + root + ", pages stored with another fanout will be ignored: " + e.getMessage());
+        }
     }
 
-    private File getCacheFile(final String key) {
-        return new File(root, key.contains("?") ? key.substring(0, key.indexOf('?')) : key);
+    private void relayout() throws IOException {
+        final List<File> misplaced;
+        try (final Stream<Path> files = Files.walk(root.toPath(), 9)) { // max fanout + 1
+            misplaced = files.map(Path::toFile)
+                    .filter(it -> STORED_FILE.matcher(it.getName()).matches())
+                    .filter(it -> !it.getParentFile().equals(toFile(it.getName().substring(0, ID_LENGTH)).getParentFile()))
+                    .collect(toList());
+        }
+        if (misplaced.isEmpty()) {
+            return;
+        }
+        LOGGER.warning("Found " + misplaced.size() + " files stored with another fanout in " + root + ", moving them to the current layout");
+        for (final File file : misplaced) {
+            final File target = new File(toFile(file.getName().substring(0, ID_LENGTH)).getParentFile(), file.getName());
+            if (!target.getParentFile().isDirectory() && !target.getParentFile().mkdirs()) {
+                throw new IOException("Can't create " + target.getParentFile());
+            }
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        final List<File> directories;
+        try (final Stream<Path> files = Files.walk(root.toPath(), 8)) {
+            directories = files.map(Path::toFile)
+                    .filter(it -> it.isDirectory() && SHARD_DIRECTORY.matcher(it.getName()).matches())
+                    .sorted(Comparator.comparing(File::getPath).reversed()) // children first
+                    .collect(toList());
+        }
+        for (final File directory : directories) {
+            final String[] children = directory.list();
+            if (children != null && children.length == 0 && !directory.delete()) {
+                LOGGER.log(WARNING, "Can't delete " + directory);
+            }
+        }
+    }
+
+    private void rebuildIndex() {
+        if (!root.isDirectory()) {
+            return;
+        }
+        try (final Stream<Path> files = Files.walk(root.toPath(), fanout + 1)) {
+            files.map(Path::toFile)
+                    .filter(it -> it.getName().endsWith(PAGE_EXTENSION) && it.getName().length() == ID_LENGTH + PAGE_EXTENSION.length())
+                    .forEach(it -> {
+                        final long size = encodings.stream()
+                                .map(encoding -> getEncodedFile(it, encoding))
+                                .mapToLong(File::length)
+                                .sum();
+                        final long lastModified = it.lastModified();
+                        index.put(it.getName().substring(0, ID_LENGTH), new IndexEntry(size, lastModified, lastModified));
+                        bytes.addAndGet(size);
+                    });
+        } catch (final IOException e) {
+            throw new IllegalStateException("Can't index " + root, e);
+        }
+    }
+
+    private void storeIndex() {
+        if (!root.isDirectory()) {
+            return;
+        }
+        final Path target = new File(root, INDEX_FILE).toPath();
+        try {
+            final Path tmp = Files.createTempFile(root.toPath(), "." + INDEX_FILE, ".tmp");
+            try {
+                try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    final List<Map.Entry<String, IndexEntry>> entries = new ArrayList<>(index.entrySet());
+                    out.writeInt(INDEX_MAGIC);
+                    out.writeInt(fanout);
+                    out.writeInt(entries.size());
+                    for (final Map.Entry<String, IndexEntry> entry : entries) {
+                        final String id = entry.getKey();
+                        for (int i = 0; i < id.length(); i += 2) {
+                            out.writeByte((Character.digit(id.charAt(i), 16) << 4) | Character.digit(id.charAt(i + 1), 16));
+                        }
+                        out.writeLong(entry.getValue().bytes);
+                        out.writeLong(entry.getValue().creation);
+                        out.writeLong(entry.getValue().lastAccess);
+                    }
+                }
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (final IOException e) {
+            LOGGER.log(WARNING, "Can't save the index, it will be rebuilt at startup: " + e.getMessage());
+        }
+    }
+
+    // readers only see the old or the new file, never a partially written one even after a crash
+    private void write(final File file, final byte[] bytes) throws IOException {
+        final Path target = file.toPath();
+        final Path tmp = Files.createTempFile(target.getParent(), "." + file.getName(), ".tmp");
+        try {
+            try (final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException amnse) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private Object lockFor(final String id) {
+        final int hash = id.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (locks.length - 1)];
+    }
+
+    // identity is the page file itself
+    private File getEncodedFile(final File cacheFile, final String encoding) {
+        return ContentEncodings.IDENTITY.equals(encoding) ? cacheFile : new File(cacheFile.getParentFile(), cacheFile.getName() + '.' + encoding);
+    }
+
+    private File getHashFile(final File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + HASH_EXTENSION);
+    }
+
+    private File getMetaFile(final File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + META_EXTENSION);
+    }
+
+    // null if the page has no meta file (stored before the tags were supported or removed)
+    private String[] readMeta(final File meta) {
+        if (!meta.exists()) {
+            return null;
+        }
+        try {
+            final String content = new String(Files.readAllBytes(meta.toPath()), StandardCharsets.UTF_8);
+            final int separator = content.indexOf('\n');
+            return separator < 0 ? new String[]{content, ""} : new String[]{content.substring(0, separator), content.substring(separator + 1)};
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    // each page is indexed with its lock so it can't race with a store or a removal of the same page
+    private void loadKeys() {
+        if (keysLoaded) {
+            return;
+        }
+        synchronized (keys) {
+            if (keysLoaded || !root.isDirectory()) {
+                keysLoaded = true;
+                return;
+            }
+            // the page id is a hash so the key of a page stored without a meta file (older version) can't be recovered
+            final AtomicInteger unknown = new AtomicInteger();
+            try (final Stream<Path> files = Files.walk(root.toPath(), fanout + 1)) {
+                files.map(Path::toFile)
+                        .filter(it -> it.getName().endsWith(PAGE_EXTENSION) && it.getName().length() == ID_LENGTH + PAGE_EXTENSION.length())
+                        .forEach(page -> {
+                            final String id = page.getName().substring(0, ID_LENGTH);
+                            synchronized (lockFor(id)) {
+                                if (!page.exists()) {
+                                    return;
+                                }
+                                final String[] keyAndTags = readMeta(getMetaFile(page));
+                                if (keyAndTags == null) {
+                                    unknown.incrementAndGet();
+                                } else {
+                                    keys.put(keyAndTags[0], PageTags.split(keyAndTags[1]));
+                                }
+                            }
+                        });
+            } catch (final IOException e) {
+                throw new IllegalStateException("Can't index the keys of " + root, e);
+            }
+            if (unknown.get() > 0) {
+                LOGGER.warning(unknown.get() + " pages of " + root + " have no " + META_EXTENSION + " file (stored by a previous version), "
+                        + "they can't be invalidated by prefix, pattern or tag until they are stored again, evicted or the directory is cleared");
+            }
+            keysLoaded = true;
+        }
+    }
+
+    // sharded layout: <root>/<2 first chars>/<2 next chars>/.../<id>.html for a fanout of 2
+    private File toFile(final String id) {
+        File parent = root;
+        for (int i = 0; i < fanout; i++) {
+            parent = new File(parent, id.substring(2 * i, 2 * i + 2));
+        }
+        return new File(parent, id + PAGE_EXTENSION);
+    }
+
+    // the id is the hash of the normalized key
+    private String toId(final String key) {
+        final MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return toHex(digest.digest(normalize(key).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String toHex(final byte[] hash) {
+        final char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    // only the configured query parameters, sorted, are kept
+    String normalize(final String key) {
+        final int fragment = key.indexOf('#');
+        final String url = fragment >= 0 ? key.substring(0, fragment) : key;
+        final int query = url.indexOf('?');
+        if (query < 0) {
+            return url;
+        }
+        final String parameters = Stream.of(url.substring(query + 1).split("&"))
+                .filter(it -> !it.isEmpty() && queryParameterFilter.test(it.contains("=") ? it.substring(0, it.indexOf('=')) : it))
+                .sorted()
+                .collect(joining("&"));
+        return parameters.isEmpty() ? url.substring(0, query) : url.substring(0, query) + '?' + parameters;
+    }
+
+    private static final class IndexEntry {
+        private final long bytes; // page and encoded variants
+        private final long creation;
+        private volatile long lastAccess;
+
+        private IndexEntry(final long bytes, final long creation, final long lastAccess) {
+            this.bytes = bytes;
+            this.creation = creation;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static final class Candidate {
+        private final String id;
+        private final IndexEntry entry;
+        private final long lastAccess;
+
+        private Candidate(final String id, final IndexEntry entry) {
+            this.id = id;
+            this.entry = entry;
+            this.lastAccess = entry.lastAccess;
+        }
     }
 }
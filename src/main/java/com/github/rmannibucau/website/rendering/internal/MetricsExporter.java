@@ -0,0 +1,14 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.function.Supplier;
+
+/**
+ * Publishes the {@link RenderingMetrics} values to a metrics library.
+ */
+interface MetricsExporter {
+    /**
+     * @param name the metric name, registered once.
+     * @param value the current value of the metric.
+     */
+    void register(String name, Supplier<Number> value);
+}
@@ -0,0 +1,30 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.function.Supplier;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+/**
+ * Registers the metrics as gauges in the application registry,
+ * this bean is excluded (see beans.xml) when the MicroProfile Metrics API is not available
+ * and does nothing when the API is there without an implementation providing the registry.
+ */
+@ApplicationScoped
+class MicroProfileMetricsExporter implements MetricsExporter {
+    private static final String PREFIX = "website.rendering.";
+
+    @Inject
+    private Instance<MetricRegistry> registry;
+
+    @Override
+    public void register(final String name, final Supplier<Number> value) {
+        if (registry.isResolvable()) {
+            registry.get().register(PREFIX + name, (Gauge<Number>) value::get);
+        }
+    }
+}
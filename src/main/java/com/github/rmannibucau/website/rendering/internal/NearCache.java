@@ -0,0 +1,201 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+/**
+ * In heap tier in front of the {@link HtmlCache} storages, bounded by an estimation of the bytes it holds.
+ * It is split in up to 16 segments (each one being a LRU with its own lock) to limit the contention and can use a
+ * frequency sketch to only admit a page if it is more popular than the ones it would evict (TinyLFU).
+ * A segment holds at least 4MB (a single segment is used for smaller sizes) and a page bigger
+ * than a segment is not kept in memory.
+ */
+class NearCache {
+    private static final int MAX_SEGMENTS = 16;
+    private static final long MIN_SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments;
+    private final FrequencySketch frequencies;
+    private final long ttl;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    NearCache(final long maxBytes, final boolean tinyLfu, final long ttl) {
+        int count = 1; // power of two
+        while (count < MAX_SEGMENTS && maxBytes / (count * 2) >= MIN_SEGMENT_BYTES) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(maxBytes / count);
+        }
+        this.frequencies = tinyLfu ? new FrequencySketch(1 << 14, (1 << 14) * 10) : null;
+        this.ttl = ttl;
+    }
+
+    /**
+     * @param key the page key.
+     * @return the version to pass to {@link #put(String, HtmlCache.Entry, long)} once the page is loaded.
+     */
+    long version(final String key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.version;
+        }
+    }
+
+    HtmlCache.Entry get(final String key) {
+        if (frequencies != null) {
+            frequencies.increment(key);
+        }
+        final Segment segment = segmentFor(key);
+        final Node node;
+        synchronized (segment) {
+            node = segment.nodes.get(key);
+            if (node != null && ttl > 0 && System.currentTimeMillis() - node.insertion > ttl) {
+                segment.remove(key);
+                misses.increment();
+                return null;
+            }
+        }
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return node.entry;
+    }
+
+    /**
+     * @param key the page key.
+     * @param entry a fully loaded entry.
+     * @param loadVersion the {@link #version(String)} read before loading the entry.
+     */
+    void put(final String key, final HtmlCache.Entry entry, final long loadVersion) {
+        final Segment segment = segmentFor(key);
+        final Node node = new Node(entry, weigh(key, entry));
+        if (node.weight > segment.maxBytes) {
+            return;
+        }
+        synchronized (segment) {
+            if (loadVersion != segment.version) {
+                return;
+            }
+            final Node previous = segment.nodes.get(key);
+            long missing = segment.bytes - (previous == null ? 0 : previous.weight) + node.weight - segment.maxBytes;
+
+            // the admission is decided before evicting anything
+            final int frequency = frequencies == null ? 0 : frequencies.frequency(key);
+            final List<String> victims = new ArrayList<>();
+            for (final Map.Entry<String, Node> eldest : segment.nodes.entrySet()) {
+                if (missing <= 0) {
+                    break;
+                }
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                if (frequencies != null && frequency <= frequencies.frequency(eldest.getKey())) {
+                    return; // not worth evicting a more popular page
+                }
+                victims.add(eldest.getKey());
+                missing -= eldest.getValue().weight;
+            }
+            for (final String victim : victims) {
+                segment.remove(victim);
+                evictions.increment();
+            }
+            segment.remove(key);
+            segment.nodes.put(key, node);
+            segment.bytes += node.weight;
+        }
+    }
+
+    void invalidate(final String key) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.version++;
+            segment.remove(key);
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getBytes() {
+        long bytes = 0;
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(final String key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    private static long weigh(final String key, final HtmlCache.Entry entry) {
+        long weight = ENTRY_OVERHEAD + 2L * key.length();
+        final String html = entry.getHtml();
+        if (html != null) {
+            weight += 2L * html.length();
+        }
+        for (final String encoding : entry.getEncodings()) {
+            final byte[] bytes = entry.getEncoded(encoding);
+            if (bytes != null) {
+                weight += bytes.length;
+            }
+        }
+        return weight;
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<String, Node> nodes = new LinkedHashMap<>(16, .75f, true);
+        private final long maxBytes;
+        private long bytes;
+
+        // bumped on each invalidation, a load started before an invalidation is not cached since it can be outdated
+        private long version;
+
+        private Segment(final long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private void remove(final String key) {
+            final Node removed = nodes.remove(key);
+            if (removed != null) {
+                bytes -= removed.weight;
+            }
+        }
+    }
+
+    private static final class Node {
+        private final HtmlCache.Entry entry;
+        private final long weight;
+        private final long insertion = System.currentTimeMillis();
+
+        private Node(final HtmlCache.Entry entry, final long weight) {
+            this.entry = entry;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.logging.Level.WARNING;
+import static java.util.stream.Collectors.toList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Stores the pages in append only segment files: writes are sequential, an invalidation appends a tombstone
+ * and the segments with too many outdated records are compacted in background.
+ * Reads use a memory mapping of the segments and an in memory index rebuilt from the segments at startup.
+ *
+ * A record is {@code length (int), crc32 (int), type (byte), timestamp (long), key length (int), key,
+ * variant count (byte)} followed by {@code name length (byte), name, data length (int), data} for each encoding
+ * and for the hash and the tags of the page (variants {@code #hash} and {@code #tags}).
+ * The checksum covers everything after itself and is verified when the segments are loaded or compacted.
+ */
+@ApplicationScoped
+@Typed(PackHtmlCache.class)
+public class PackHtmlCache implements HtmlCache {
+    private static final Logger LOGGER = Logger.getLogger(PackHtmlCache.class.getName());
+
+    private static final String SEGMENT_EXTENSION = ".segment";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_LENGTH = 4 + 4 + 1 + 8 + 4;
+    private static final String HASH_VARIANT = "#hash";
+    private static final String TAGS_VARIANT = "#tags";
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.directory")
+    private Optional<String> directory;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.pack.segmentSize", defaultValue = "67108864")
+    private Long segmentSize;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.pack.compactionThreshold", defaultValue = "0.5")
+    private Double compactionThreshold;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.pack.sync", defaultValue = "false")
+    private Boolean sync;
+
+    @Inject
+    private ContentEncodings contentEncodings;
+
+    @Inject
+    private PageTags pageTags;
+
+    private File root;
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+    private final KeyIndex keys = new KeyIndex(); // updated with the index
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final LongAdder compactions = new LongAdder();
+    private ExecutorService compactor;
+
+    // guards the appends and the index updates, reads are lock free
+    private final Object writeLock = new Object();
+    private Segment active;
+
+    @PostConstruct
+    private void init() {
+        root = new File(directory.orElseThrow(
+                () -> new IllegalArgumentException("No directory set, please configure rmannibucau.website.rendering.cache.directory")));
+        if (segmentSize < 1024 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.cache.pack.segmentSize must be between 1024 and " + Integer.MAX_VALUE);
+        }
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IllegalStateException("Can't create " + root);
+        }
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, PackHtmlCache.class.getSimpleName() + "-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final File[] files = root.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        final Collection<File> existing = files == null ? emptyList() : Stream.of(files)
+                .sorted((f1, f2) -> Integer.compare(toSegmentId(f1), toSegmentId(f2)))
+                .collect(toList());
+        int remaining = existing.size();
+        for (final File file : existing) {
+            load(file, --remaining == 0);
+        }
+        synchronized (writeLock) { // appends continue in the last segment to not leave a mostly empty segment per restart
+            final Map.Entry<Integer, Segment> last = segments.lastEntry();
+            active = last != null && !last.getValue().buffer.isReadOnly() && last.getValue().size < last.getValue().capacity ?
+                    last.getValue() : newSegment(last == null ? 1 : last.getKey() + 1);
+        }
+        segments.values().forEach(this::maybeCompact);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        compactor.shutdownNow();
+        synchronized (writeLock) {
+            if (active != null) {
+                active.buffer.force();
+            }
+        }
+    }
+
+    public long getEntries() {
+        return index.size();
+    }
+
+    public long getSegments() {
+        return segments.size();
+    }
+
+    public long getBytes() {
+        return segments.values().stream().mapToLong(it -> it.size).sum();
+    }
+
+    public long getDeadBytes() {
+        return segments.values().stream().mapToLong(it -> it.deadBytes.get()).sum();
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public String get(final String key) {
+        final Entry entry = getEntry(key);
+        return entry == null ? null : entry.getHtml();
+    }
+
+    @Override
+    public Entry getEntry(final String key) {
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        return new Entry(null, location.timestamp, emptyMap(), location.record.hash) { // only read what is served
+            @Override
+            public String getHtml() {
+                final byte[] bytes = getEncoded(ContentEncodings.IDENTITY);
+                return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            @Override
+            public Collection<String> getEncodings() {
+                return location.record.encodings;
+            }
+
+            @Override
+            public byte[] getEncoded(final String encoding) {
+                final ByteBuffer data = location.slice(encoding);
+                if (data == null) {
+                    return null;
+                }
+                final byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                return bytes;
+            }
+
+            // copied from the mapping to the servlet stream through its heap buffer, the page is never decoded
+            @Override
+            public boolean writeTo(final String encoding, final Sink sink) throws IOException {
+                final ByteBuffer data = location.slice(encoding);
+                if (data == null) {
+                    return false;
+                }
+                final OutputStream stream = sink.open(data.remaining());
+                final WritableByteChannel output = Channels.newChannel(stream);
+                while (data.hasRemaining()) {
+                    output.write(data);
+                }
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public boolean putIfAbsent(final String key, final String html) {
+        if (index.containsKey(key)) {
+            return false;
+        }
+        final byte[] record = newRecord(PUT, key, encode(html));
+        synchronized (writeLock) {
+            if (index.containsKey(key)) {
+                return false;
+            }
+            return append(key, record) != null;
+        }
+    }
+
+    @Override
+    public boolean put(final String key, final String html) {
+        final byte[] record = newRecord(PUT, key, encode(html));
+        synchronized (writeLock) {
+            return append(key, record) != null;
+        }
+    }
+
+    @Override
+    public boolean invalidate(final String key) {
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        final byte[] tombstone = newRecord(DELETE, key, null);
+        synchronized (writeLock) {
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            return append(key, tombstone) != null;
+        }
+    }
+
+    @Override
+    public Collection<String> getKeysByPrefix(final String prefix) {
+        return keys.byPrefix(prefix);
+    }
+
+    @Override
+    public Collection<String> getKeysByTag(final String tag) {
+        return keys.byTag(tag);
+    }
+
+    // identity is always stored, it is the html returned by get()
+    private Map<String, byte[]> encode(final String html) {
+        final Map<String, byte[]> encoded = contentEncodings.encode(html);
+        final Map<String, byte[]> all = new LinkedHashMap<>();
+        if (!encoded.containsKey(ContentEncodings.IDENTITY)) {
+            all.put(ContentEncodings.IDENTITY, html.getBytes(StandardCharsets.UTF_8));
+        }
+        all.putAll(encoded);
+        all.put(HASH_VARIANT, ContentEncodings.hash(html).getBytes(StandardCharsets.US_ASCII));
+        final Collection<String> tags = pageTags.extract(html);
+        if (!tags.isEmpty()) {
+            all.put(TAGS_VARIANT, PageTags.join(tags).getBytes(StandardCharsets.UTF_8));
+        }
+        return all;
+    }
+
+    // must be called with the write lock
+    private Location append(final String key, final byte[] bytes) {
+        if (bytes.length > segmentSize) {
+            LOGGER.log(WARNING, "Page " + key + " is bigger than a segment, it is not cached");
+            return null;
+        }
+        if (active.size + bytes.length > active.capacity) {
+            roll();
+        }
+        final int offset = active.size;
+        final ByteBuffer target = active.buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+        active.size = offset + bytes.length;
+        if (sync) {
+            active.buffer.force();
+        }
+
+        final Record record = Record.read(active.buffer, offset, active.size, false);
+        if (record.type == DELETE) {
+            final Location previous = index.remove(key);
+            keys.remove(key);
+            if (previous != null) {
+                markDead(previous.segment, previous.record.length);
+            }
+            markDead(active, record.length); // only useful until the older records are compacted
+            return new Location(active, offset, record);
+        }
+        final Location location = new Location(active, offset, record);
+        final Location previous = index.put(key, location);
+        keys.put(key, record.tags);
+        if (previous != null) {
+            markDead(previous.segment, previous.record.length);
+        }
+        return location;
+    }
+
+    private void roll() {
+        final Segment sealed = active;
+        sealed.buffer.force();
+        active = newSegment(sealed.id + 1);
+        maybeCompact(sealed);
+    }
+
+    private void markDead(final Segment segment, final int length) {
+        segment.deadBytes.addAndGet(length);
+        if (segment != active) {
+            maybeCompact(segment);
+        }
+    }
+
+    private void maybeCompact(final Segment segment) {
+        if (segment.size > 0 && segment.deadBytes.get() >= compactionThreshold * segment.size
+                && segment.compactionScheduled.compareAndSet(false, true)) {
+            try {
+                compactor.execute(() -> compact(segment));
+            } catch (final RuntimeException re) { // shutting down
+                segment.compactionScheduled.set(false);
+            }
+        }
+    }
+
+    // copies the live records at the end of the active segment and deletes the segment
+    private void compact(final Segment segment) {
+        try {
+            int offset = 0;
+            while (offset < segment.size) {
+                final Record record = Record.read(segment.buffer, offset, segment.size, true);
+                if (record == null) {
+                    LOGGER.log(WARNING, "Corrupted record in " + segment.file + " at " + offset + ", dropping the end of the segment");
+                    break;
+                }
+                synchronized (writeLock) {
+                    final Location current = index.get(record.key);
+                    final boolean live = record.type == PUT ?
+                            current != null && current.segment == segment && current.offset == offset :
+                            // a tombstone is only needed while an older segment can contain the page
+                            current == null && segments.firstKey() < segment.id;
+                    if (live) {
+                        final byte[] bytes = new byte[record.length];
+                        final ByteBuffer source = segment.buffer.duplicate();
+                        source.position(offset);
+                        source.get(bytes);
+                        append(record.key, bytes);
+                    }
+                }
+                offset += record.length;
+            }
+            synchronized (writeLock) {
+                active.buffer.force(); // the copies must be persisted before the originals are deleted
+                segments.remove(segment.id);
+            }
+            // the mapping stays valid for the in flight reads until it is garbage collected
+            if (!segment.file.delete()) {
+                LOGGER.log(WARNING, "Can't delete " + segment.file);
+            }
+            compactions.increment();
+        } catch (final RuntimeException re) {
+            LOGGER.log(WARNING, "Compaction of " + segment.file + " failed: " + re.getMessage(), re);
+        }
+    }
+
+    // the last segment is mapped writable to be reopened for the appends
+    private void load(final File file, final boolean last) {
+        final Segment segment;
+        try (final FileChannel channel = last ?
+                FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE) :
+                FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new IllegalStateException(file + " is too big");
+            }
+            segment = new Segment(toSegmentId(file), file,
+                    channel.map(last ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, length), (int) length);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Can't read " + file, e);
+        }
+
+        // the active segment is preallocated so the end is empty, a partial record means a crash during a write
+        int offset = 0;
+        while (offset < segment.capacity) {
+            final Record record = Record.read(segment.buffer, offset, segment.capacity, true);
+            if (record == null) {
+                break;
+            }
+            final Location previous;
+            if (record.type == PUT) {
+                previous = index.put(record.key, new Location(segment, offset, record));
+                keys.put(record.key, record.tags);
+            } else {
+                previous = index.remove(record.key);
+                keys.remove(record.key);
+                segment.deadBytes.addAndGet(record.length);
+            }
+            if (previous != null) {
+                previous.segment.deadBytes.addAndGet(previous.record.length);
+            }
+            offset += record.length;
+        }
+        segment.size = offset;
+        if (last && offset > 0 && offset + 4 <= segment.capacity && segment.buffer.getInt(offset) != 0) {
+            // partially written or corrupted record, erase it so the next appends can't be followed by its leftovers
+            for (int i = offset; i < segment.capacity; i++) {
+                segment.buffer.put(i, (byte) 0);
+            }
+            segment.buffer.force();
+        }
+        if (offset == 0) {
+            if (!file.delete()) {
+                LOGGER.log(WARNING, "Can't delete " + file);
+            }
+            return;
+        }
+        segments.put(segment.id, segment);
+    }
+
+    private Segment newSegment(final int id) {
+        final File file = new File(root, String.format("%010d", id) + SEGMENT_EXTENSION);
+        try (final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final int capacity = segmentSize.intValue();
+            final Segment segment = new Segment(id, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity), capacity);
+            segments.put(id, segment);
+            return segment;
+        } catch (final IOException e) {
+            throw new IllegalStateException("Can't create " + file, e);
+        }
+    }
+
+    private static int toSegmentId(final File file) {
+        return Integer.parseInt(file.getName().substring(0, file.getName().length() - SEGMENT_EXTENSION.length()));
+    }
+
+    private static byte[] newRecord(final byte type, final String key, final Map<String, byte[]> variants) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_LENGTH + keyBytes.length + 1;
+        if (variants != null) {
+            for (final Map.Entry<String, byte[]> variant : variants.entrySet()) {
+                length += 1 + variant.getKey().length() + 4 + variant.getValue().length;
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(length);
+        buffer.putInt(0); // crc, computed once the record is written
+        buffer.put(type);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putInt(keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put((byte) (variants == null ? 0 : variants.size()));
+        if (variants != null) {
+            for (final Map.Entry<String, byte[]> variant : variants.entrySet()) {
+                final byte[] name = variant.getKey().getBytes(StandardCharsets.US_ASCII);
+                buffer.put((byte) name.length);
+                buffer.put(name);
+                buffer.putInt(variant.getValue().length);
+                buffer.put(variant.getValue());
+            }
+        }
+        final byte[] bytes = buffer.array();
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 8, length - 8);
+        buffer.putInt(4, (int) crc.getValue());
+        return bytes;
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final AtomicLong deadBytes = new AtomicLong();
+        private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+        private volatile int size;
+
+        private Segment(final int id, final File file, final MappedByteBuffer buffer, final int capacity) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final Record record;
+        private final long timestamp;
+
+        private Location(final Segment segment, final int offset, final Record record) {
+            this.segment = segment;
+            this.offset = offset;
+            this.record = record;
+            this.timestamp = record.timestamp;
+        }
+
+        private ByteBuffer slice(final String encoding) {
+            final int variant = record.encodings.indexOf(encoding);
+            if (variant < 0) {
+                return null;
+            }
+            final int start = offset + record.positions[variant];
+            final ByteBuffer view = segment.buffer.duplicate();
+            view.limit(start + record.lengths[variant]);
+            view.position(start);
+            return view.slice();
+        }
+    }
+
+    private static final class Record {
+        private final byte type;
+        private final int length;
+        private final long timestamp;
+        private final String key;
+        private final List<String> encodings;
+        private final int[] positions; // relative to the record
+        private final int[] lengths;
+        private final String hash; // null for the records written before the hash was stored
+        private final Collection<String> tags;
+
+        private Record(final byte type, final int length, final long timestamp, final String key,
+                       final List<String> encodings, final int[] positions, final int[] lengths,
+                       final String hash, final Collection<String> tags) {
+            this.type = type;
+            this.length = length;
+            this.timestamp = timestamp;
+            this.key = key;
+            this.encodings = encodings;
+            this.positions = positions;
+            this.lengths = lengths;
+            this.hash = hash;
+            this.tags = tags;
+        }
+
+        // null if there is no valid record at this offset
+        private static Record read(final ByteBuffer segment, final int offset, final int limit, final boolean verify) {
+            if (offset + HEADER_LENGTH > limit) {
+                return null;
+            }
+            final ByteBuffer view = segment.duplicate();
+            view.limit(limit);
+            view.position(offset);
+            final int length = view.getInt();
+            if (length < HEADER_LENGTH + 1 || offset + length > limit) {
+                return null;
+            }
+            final int crc = view.getInt();
+            if (verify) {
+                final byte[] content = new byte[length - 8];
+                final ByteBuffer checked = view.duplicate();
+                checked.get(content);
+                final CRC32 actual = new CRC32();
+                actual.update(content);
+                if ((int) actual.getValue() != crc) {
+                    return null;
+                }
+            }
+            final byte type = view.get();
+            final long timestamp = view.getLong();
+            final byte[] key = new byte[view.getInt()];
+            view.get(key);
+            final int count = view.get();
+            final List<String> encodings = new ArrayList<>(count);
+            final int[] positions = new int[count];
+            final int[] lengths = new int[count];
+            String hash = null;
+            Collection<String> tags = emptyList();
+            for (int i = 0; i < count; i++) {
+                final byte[] name = new byte[view.get()];
+                view.get(name);
+                final String variant = new String(name, StandardCharsets.US_ASCII);
+                final int dataLength = view.getInt();
+                if (HASH_VARIANT.equals(variant)) { // not an encoding, kept out of the positions
+                    final byte[] value = new byte[dataLength];
+                    view.get(value);
+                    hash = new String(value, StandardCharsets.US_ASCII);
+                    continue;
+                }
+                if (TAGS_VARIANT.equals(variant)) {
+                    final byte[] value = new byte[dataLength];
+                    view.get(value);
+                    tags = PageTags.split(new String(value, StandardCharsets.UTF_8));
+                    continue;
+                }
+                final int index = encodings.size();
+                encodings.add(variant);
+                lengths[index] = dataLength;
+                positions[index] = view.position() - offset;
+                view.position(view.position() + dataLength);
+            }
+            return new Record(type, length, timestamp, new String(key, StandardCharsets.UTF_8), encodings, positions, lengths, hash, tags);
+        }
+    }
+}
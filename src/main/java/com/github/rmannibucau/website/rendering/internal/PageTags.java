@@ -0,0 +1,73 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptySet;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Extracts the tags of a page from a meta tag ({@code <meta name="website-rendering-tags" content="product,category-1">} by default)
+ * so the pages can be invalidated by tag.
+ */
+@ApplicationScoped
+public class PageTags {
+    private static final Pattern HEAD_END = Pattern.compile("</head\\s*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern META = Pattern.compile("<meta\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "(?<![\\w-])(name|content)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')", Pattern.CASE_INSENSITIVE);
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.tags.meta", defaultValue = "website-rendering-tags")
+    private String metaName;
+
+    /**
+     * @param html the page.
+     * @return the tags of the page, empty if it has none.
+     */
+    public Collection<String> extract(final String html) {
+        final Matcher meta = META.matcher(html);
+        final Matcher head = HEAD_END.matcher(html);
+        if (head.find()) { // meta tags are in the head
+            meta.region(0, head.start());
+        }
+        while (meta.find()) {
+            String name = null;
+            String content = null;
+            final Matcher attribute = ATTRIBUTE.matcher(meta.group());
+            while (attribute.find()) {
+                final String value = attribute.group(2) != null ? attribute.group(2) : attribute.group(3);
+                if ("name".equalsIgnoreCase(attribute.group(1))) {
+                    name = value;
+                } else {
+                    content = value;
+                }
+            }
+            if (metaName.equalsIgnoreCase(name) && content != null) {
+                final Collection<String> tags = new LinkedHashSet<>();
+                Stream.of(content.split(",")).map(String::trim).filter(it -> !it.isEmpty()).forEach(tags::add);
+                return tags;
+            }
+        }
+        return emptySet();
+    }
+
+    static String join(final Collection<String> tags) {
+        return String.join(",", tags);
+    }
+
+    static Collection<String> split(final String tags) {
+        final Collection<String> values = new LinkedHashSet<>();
+        if (tags != null) {
+            Stream.of(tags.split(",")).filter(it -> !it.isEmpty()).forEach(values::add);
+        }
+        return values;
+    }
+}
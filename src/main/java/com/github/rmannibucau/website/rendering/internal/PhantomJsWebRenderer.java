@@ -1,5 +1,8 @@
 package com.github.rmannibucau.website.rendering.internal;
 
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.SEVERE;
 import static java.util.stream.Collectors.toList;
 import static org.apache.ziplock.JarLocation.jarFromRegex;
@@ -12,21 +15,40 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
-import java.util.concurrent.Semaphore;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
 
 import com.github.rmannibucau.website.rendering.api.WebRenderer;
@@ -37,9 +59,48 @@ import org.openqa.selenium.phantomjs.PhantomJSDriverService;
 import org.openqa.selenium.remote.DesiredCapabilities;
 
 @ApplicationScoped
+@Typed(PhantomJsWebRenderer.class)
 public class PhantomJsWebRenderer implements WebRenderer {
     private static final Logger LOGGER = Logger.getLogger(PhantomJsWebRenderer.class.getName());
 
+    // executed in the PhantomJS context, this is the page, the requests matching a deny pattern
+    // or not matching any allow pattern (if there are some) are aborted before being sent
+    // and the pending requests are tracked if the network activity is used to detect a rendered page
+    private static final String PAGE_HOOKS = "" +
+            "var page = this;\n" +
+            "var toRegex = function (pattern) { return new RegExp(pattern, 'i'); };\n" +
+            "var deny = arguments[1].map(toRegex);\n" +
+            "var allow = arguments[2].map(toRegex);\n" +
+            "var matches = function (url) { return function (regex) { return regex.test(url); }; };\n" +
+            "var track = arguments[3];\n" +
+            "page.settings.loadImages = arguments[0];\n" +
+            "page.pendingRequests = {};\n" +
+            "page.lastNetworkActivity = Date.now();\n" +
+            "page.onResourceRequested = function (requestData, request) {\n" +
+            "  var url = requestData.url;\n" +
+            "  if (url.indexOf('data:') === 0) { return; }\n" +
+            "  if (deny.some(matches(url)) || (allow.length > 0 && !allow.some(matches(url)))) { request.abort(); return; }\n" +
+            "  if (track) { page.pendingRequests[requestData.id] = true; page.lastNetworkActivity = Date.now(); }\n" +
+            "};\n" +
+            "if (track) {\n" +
+            "  var done = function (data) { delete page.pendingRequests[data.id]; page.lastNetworkActivity = Date.now(); };\n" +
+            "  page.onResourceReceived = function (response) { if (response.stage === 'end') { done(response); } };\n" +
+            "  page.onResourceError = done;\n" +
+            "  page.onResourceTimeout = done;\n" +
+            "}";
+    private static final String RESET_NETWORK = "this.pendingRequests = {}; this.lastNetworkActivity = Date.now();";
+    private static final String NETWORK_STATE = "return [Object.keys(this.pendingRequests).length, Date.now() - this.lastNetworkActivity];";
+
+    private static final String IMAGES = "\\.(png|jpe?g|gif|webp|svg|ico|bmp|avif)([?#].*)?$";
+    private static final String MEDIA = "\\.(mp4|webm|ogg|ogv|mp3|wav|m4a|avi|mov|flac)([?#].*)?$";
+    private static final String FONTS = "\\.(woff2?|ttf|otf|eot)([?#].*)?$";
+    private static final String STYLESHEETS = "\\.css([?#].*)?$";
+    private static final String TRACKING = "^https?://([^/]+\\.)?(" +
+            "google-analytics\\.com|googletagmanager\\.com|doubleclick\\.net|googlesyndication\\.com|googleadservices\\.com|" +
+            "facebook\\.net|connect\\.facebook\\.com|hotjar\\.com|segment\\.(io|com)|mixpanel\\.com|" +
+            "scorecardresearch\\.com|quantserve\\.com|newrelic\\.com|nr-data\\.net|clarity\\.ms|matomo\\.cloud|" +
+            "bat\\.bing\\.com|ads-twitter\\.com|analytics\\.twitter\\.com|linkedin\\.com/px|snap\\.licdn\\.com)([/:?#].*)?$";
+
     @Inject
     @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.location")
     private Optional<String> phantomJsLocation;
@@ -48,11 +109,102 @@ public class PhantomJsWebRenderer implements WebRenderer {
     @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.count", defaultValue = "1")
     private Integer phantomJsInstanceCount;
 
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.min")
+    private Optional<Integer> phantomJsInstanceMin;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.max")
+    private Optional<Integer> phantomJsInstanceMax;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.idleTimeout", defaultValue = "60000")
+    private Long phantomJsInstanceIdleTimeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.maxRenders", defaultValue = "0")
+    private Integer phantomJsInstanceMaxRenders;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.maxAge", defaultValue = "0")
+    private Long phantomJsInstanceMaxAge;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.healthCheck", defaultValue = "false")
+    private Boolean phantomJsInstanceHealthCheck;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.pages", defaultValue = "1")
+    private Integer phantomJsInstancePages;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.instances.resetPages", defaultValue = "true")
+    private Boolean phantomJsInstanceResetPages;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.resources.deny")
+    private Optional<String> phantomJsResourcesDeny;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.resources.allow")
+    private Optional<String> phantomJsResourcesAllow;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.resources.blockedTypes")
+    private Optional<String> phantomJsResourcesBlockedTypes;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.resources.blockTracking", defaultValue = "false")
+    private Boolean phantomJsResourcesBlockTracking;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness", defaultValue = "load")
+    private String phantomJsReadiness;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness.selector")
+    private Optional<String> phantomJsReadinessSelector;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness.flag", defaultValue = "window.renderComplete")
+    private String phantomJsReadinessFlag;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness.networkIdle", defaultValue = "500")
+    private Long phantomJsReadinessNetworkIdle;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness.timeout", defaultValue = "10000")
+    private Long phantomJsReadinessTimeout;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.phantomjs.readiness.pollInterval", defaultValue = "50")
+    private Long phantomJsReadinessPollInterval;
+
     @Inject // potentially produced by the app, otherwise we just use chrome
     private javax.enterprise.inject.Instance<DesiredCapabilities> desiredCapabilities;
 
-    private final Collection<Instance> instances = new ArrayList<>();
-    private final Semaphore permits = new Semaphore(0);
+    @Inject
+    private RenderingMetrics metrics;
+
+    // free pages and captures waiting for one, the dispatcher matches them without blocking the callers
+    private final Set<Instance> instances = ConcurrentHashMap.newKeySet(); // not yet closed ones
+    private final Queue<Page> idlePages = new ConcurrentLinkedQueue<>();
+    private final Deque<PendingTask<?>> pendingTasks = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger instanceCount = new AtomicInteger(); // includes the starting ones, excludes the retired ones
+    private ExecutorService executor;
+    private ScheduledExecutorService reaper;
+    private DesiredCapabilities capabilities;
+    private File exec;
+    private int minInstances;
+    private int maxInstances;
+    private boolean loadImages = true;
+    private List<String> deniedResources;
+    private List<String> allowedResources;
+    private Readiness readiness;
+    private String readinessScript;
+    private LatencyHistogram waitDuration;
+    private LatencyHistogram captureDuration;
 
     @PostConstruct
     private void init() {
@@ -61,7 +213,7 @@ public class PhantomJsWebRenderer implements WebRenderer {
             throw new IllegalStateException("Can't create " + phantomJs.getAbsolutePath());
         }
         final String execName = "bin/phantomjs" + (System.getProperty("os.name").toLowerCase(Locale.ENGLISH).contains("win") ? ".exe" : "");
-        final File exec = new File(phantomJs, execName);
+        exec = new File(phantomJs, execName);
         if (!exec.exists()) {
             try {
                 Zips.unzip(jarFromRegex("arquillian-phantom-binary.*" + findSuffix()), phantomJs);
@@ -71,57 +223,408 @@ public class PhantomJsWebRenderer implements WebRenderer {
             exec.setExecutable(true);
         }
 
-        final DesiredCapabilities capabilities = desiredCapabilities.isResolvable() ?
+        capabilities = desiredCapabilities.isResolvable() ?
                 this.desiredCapabilities.get() : DesiredCapabilities.chrome();
         capabilities.setCapability(PhantomJSDriverService.PHANTOMJS_EXECUTABLE_PATH_PROPERTY, exec.getAbsolutePath());
-        instances.addAll(IntStream.range(0, phantomJsInstanceCount)
-                .mapToObj(i -> new Instance(capabilities, exec))
-                .collect(toList()));
-        permits.release(instances.size());
+
+        initResourceFilter();
+        initReadiness();
+
+        if (phantomJsInstancePages <= 0) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.phantomjs.instances.pages must be positive");
+        }
+        maxInstances = Math.max(1, phantomJsInstanceMax.orElse(phantomJsInstanceCount));
+        minInstances = Math.min(maxInstances, Math.max(0, phantomJsInstanceMin.orElse(phantomJsInstanceCount)));
+
+        waitDuration = metrics.histogram("phantomjs.wait");
+        captureDuration = metrics.histogram("phantomjs.capture");
+        metrics.gauge("phantomjs.instances", instanceCount::get);
+        metrics.gauge("phantomjs.pages.idle", idlePages::size);
+        metrics.gauge("phantomjs.pages.busy", () -> instances.stream().mapToInt(it -> it.busyPages.get()).sum());
+        metrics.gauge("phantomjs.pending", pendingTasks::size);
+
+        // at most one task per page (+ startups/shutdowns) so this pool is naturally bounded by the page count
+        final AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, PhantomJsWebRenderer.class.getSimpleName() + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // start the minimum instances in parallel, other ones are started on demand
+        instanceCount.addAndGet(minInstances);
+        final List<CompletableFuture<Instance>> startups = IntStream.range(0, minInstances)
+                .mapToObj(i -> CompletableFuture.supplyAsync(this::newInstance, executor))
+                .collect(toList());
+        startups.forEach(startup -> idlePages.addAll(await(startup).pages));
+
+        if ((minInstances < maxInstances && phantomJsInstanceIdleTimeout > 0) || phantomJsInstanceMaxAge > 0) {
+            reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, PhantomJsWebRenderer.class.getSimpleName() + "-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long period = Math.max(1000, Math.min(
+                    phantomJsInstanceIdleTimeout > 0 ? phantomJsInstanceIdleTimeout : Long.MAX_VALUE,
+                    phantomJsInstanceMaxAge > 0 ? phantomJsInstanceMaxAge : Long.MAX_VALUE) / 2);
+            reaper.scheduleWithFixedDelay(this::retireIdleInstances, period, period, MILLISECONDS);
+        }
     }
 
     // for advanced cases, directly expose the driver
     @Override
     public <T> void withDriver(final Class<T> expectedApi, final Consumer<T> consumer) {
-        withInstance(driver -> {
+        await(withInstance(driver -> {
             final T api = expectedApi.cast(driver);
             consumer.accept(api);
             return null;
-        });
+        }));
     }
 
     @Override
     public String capture(final String url) {
+        return await(captureAsync(url).toCompletableFuture());
+    }
+
+    @Override
+    public CompletionStage<String> captureAsync(final String url) {
         return withInstance(driver -> {
+            final long start = System.nanoTime();
+            if (readiness == Readiness.NETWORK_IDLE) {
+                driver.executePhantomJS(RESET_NETWORK);
+            }
             driver.get(url);
-            return driver.getPageSource();
+            awaitReadiness(driver, url);
+            final String html = driver.getPageSource();
+            captureDuration.recordSince(start);
+            return html;
         });
     }
 
-    private <T> T withInstance(final Function<PhantomJSDriver, T> fn) {
-        try {
-            permits.acquire();
-        } catch (final InterruptedException e) {
-            Thread.currentThread().interrupt();
+    // the page is loaded, poll until it is rendered or the deadline is reached (then the page is captured as it is)
+    private void awaitReadiness(final PhantomJSDriver driver, final String url) {
+        if (readiness == Readiness.LOAD) {
+            return;
         }
-        final Instance instance;
-        synchronized (instances) {
-            final Iterator<Instance> iterator = instances.iterator();
-            instance = iterator.next();
-            iterator.remove();
+        final long deadline = System.nanoTime() + MILLISECONDS.toNanos(phantomJsReadinessTimeout);
+        while (!isReady(driver)) {
+            if (System.nanoTime() - deadline >= 0) {
+                LOGGER.warning(url + " not rendered after " + phantomJsReadinessTimeout + "ms, capturing it anyway");
+                return;
+            }
+            try {
+                MILLISECONDS.sleep(phantomJsReadinessPollInterval);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
         }
+    }
+
+    private boolean isReady(final PhantomJSDriver driver) {
+        switch (readiness) {
+            case NETWORK_IDLE:
+                final List<?> state = List.class.cast(driver.executePhantomJS(NETWORK_STATE));
+                return Number.class.cast(state.get(0)).intValue() == 0
+                        && Number.class.cast(state.get(1)).longValue() >= phantomJsReadinessNetworkIdle;
+            case SELECTOR:
+                return Boolean.TRUE.equals(driver.executeScript(readinessScript, phantomJsReadinessSelector.get()));
+            case FLAG:
+                return Boolean.TRUE.equals(driver.executeScript(readinessScript));
+            case LOAD:
+            default:
+                return true;
+        }
+    }
+
+    private void initReadiness() {
+        readiness = Readiness.valueOf(phantomJsReadiness.trim().toUpperCase(ROOT).replace('-', '_'));
+        switch (readiness) {
+            case SELECTOR:
+                if (!phantomJsReadinessSelector.isPresent()) {
+                    throw new IllegalArgumentException("No selector set, please configure rmannibucau.website.rendering.phantomjs.readiness.selector");
+                }
+                readinessScript = "return document.querySelector(arguments[0]) !== null;";
+                break;
+            case FLAG: // the flag can be undefined until the application sets it
+                readinessScript = "try { return !!(" + phantomJsReadinessFlag + "); } catch (e) { return false; }";
+                break;
+            default:
+        }
+    }
+
+    private <T> CompletableFuture<T> withInstance(final Function<PhantomJSDriver, T> fn) {
+        final PendingTask<T> task = new PendingTask<>(fn);
+        pendingTasks.add(task);
+        dispatch();
+        return task.result;
+    }
+
+    // both sides (new task, released instance) enqueue then dispatch so one of them always sees the match
+    private void dispatch() {
+        while (!pendingTasks.isEmpty()) {
+            final Page page = idlePages.poll();
+            if (page == null) {
+                startInstance(); // the new instance will dispatch once started
+                return;
+            }
+            final PendingTask<?> task = pendingTasks.poll();
+            if (task == null || task.result.isDone()) { // nothing to do or cancelled by the caller
+                idlePages.add(page);
+                continue;
+            }
+            page.instance.busyPages.incrementAndGet();
+            try {
+                executor.execute(() -> execute(page, task));
+            } catch (final RejectedExecutionException ree) { // shutting down
+                release(page);
+                task.result.completeExceptionally(ree);
+            }
+        }
+    }
+
+    private void execute(final Page page, final PendingTask<?> task) {
+        final Instance instance = page.instance;
+        if (instance.retired.get() || !isHealthy(page)) {
+            if (!instance.retired.get()) {
+                LOGGER.warning("Retiring unhealthy PhantomJS instance");
+                retire(instance);
+            }
+            release(page);
+            pendingTasks.addFirst(task);
+            dispatch();
+            return;
+        }
+        waitDuration.recordSince(task.created);
+        instance.rendering.readLock().lock(); // waits for the reset of another page
         try {
-            return fn.apply(instance.driver);
+            task.run(page.driver);
+            page.suspect = task.result.isCompletedExceptionally();
         } finally {
-            synchronized (instances) {
-                instances.add(instance);
+            instance.rendering.readLock().unlock();
+            if (phantomJsInstanceResetPages) {
+                reset(page);
+            }
+            instance.renders.incrementAndGet();
+            instance.lastUsage = System.currentTimeMillis();
+            if (shouldRecycle(instance, instance.lastUsage)) {
+                retire(instance);
+            }
+            release(page);
+            dispatch();
+        }
+    }
+
+    // the cookies and the local storage are shared by the pages of a process: they are only cleared
+    // when no other page is rendering, the last rendering to complete clears them
+    private void reset(final Page page) {
+        final PhantomJSDriver driver = page.driver;
+        try {
+            final Lock lock = page.instance.rendering.writeLock();
+            if (lock.tryLock()) {
+                try {
+                    driver.executeScript("try { window.localStorage.clear(); window.sessionStorage.clear(); } catch (e) {}");
+                    driver.manage().deleteAllCookies();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            driver.get("about:blank"); // stops the timers and requests of the page and releases its DOM
+        } catch (final RuntimeException re) { // the health check will retire the instance if it is broken
+            LOGGER.log(FINE, re.getMessage(), re);
+        }
+    }
+
+    // the pages of a retired instance are not reused, the process is stopped with its last busy page
+    private void release(final Page page) {
+        final Instance instance = page.instance;
+        instance.busyPages.decrementAndGet();
+        if (!instance.retired.get()) {
+            idlePages.add(page);
+            if (!instance.retired.get() || !idlePages.remove(page)) {
+                return;
+            }
+        }
+        closeIfDrained(instance);
+    }
+
+    private void startInstance() {
+        int current;
+        do {
+            current = instanceCount.get();
+            if (current >= maxInstances) {
+                return;
+            }
+        } while (!instanceCount.compareAndSet(current, current + 1));
+
+        try {
+            executor.execute(() -> {
+                try {
+                    idlePages.addAll(newInstance().pages);
+                } catch (final RuntimeException re) {
+                    instanceCount.decrementAndGet();
+                    LOGGER.log(SEVERE, re.getMessage(), re);
+                    // fail a waiting task to ensure we don't loop forever trying to start an instance
+                    final PendingTask<?> task = pendingTasks.poll();
+                    if (task != null) {
+                        task.result.completeExceptionally(re);
+                    }
+                }
+                dispatch();
+            });
+        } catch (final RejectedExecutionException ree) { // shutting down
+            instanceCount.decrementAndGet();
+        }
+    }
+
+    private Instance newInstance() {
+        final Instance instance = new Instance(capabilities, exec, phantomJsInstancePages);
+        if (!loadImages || !deniedResources.isEmpty() || !allowedResources.isEmpty() || readiness == Readiness.NETWORK_IDLE) {
+            try { // hooks are attached to the page of each session
+                instance.pages.forEach(page -> page.driver.executePhantomJS(PAGE_HOOKS, loadImages, deniedResources, allowedResources,
+                        readiness == Readiness.NETWORK_IDLE));
+            } catch (final RuntimeException re) {
+                instance.close();
+                throw re;
+            }
+        }
+        instances.add(instance);
+        return instance;
+    }
+
+    private void initResourceFilter() {
+        deniedResources = toPatterns(phantomJsResourcesDeny);
+        allowedResources = toPatterns(phantomJsResourcesAllow);
+        phantomJsResourcesBlockedTypes.ifPresent(value -> Stream.of(value.split(","))
+                .map(it -> it.trim().toLowerCase(ROOT))
+                .filter(it -> !it.isEmpty())
+                .forEach(type -> {
+                    switch (type) {
+                        case "images": // don't even decode the inline ones
+                            loadImages = false;
+                            deniedResources.add(IMAGES);
+                            break;
+                        case "media":
+                            deniedResources.add(MEDIA);
+                            break;
+                        case "fonts":
+                            deniedResources.add(FONTS);
+                            break;
+                        case "stylesheets":
+                            deniedResources.add(STYLESHEETS);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unsupported resource type: " + type);
+                    }
+                }));
+        if (phantomJsResourcesBlockTracking) {
+            deniedResources.add(TRACKING);
+        }
+    }
+
+    private List<String> toPatterns(final Optional<String> value) {
+        final List<String> patterns = new ArrayList<>();
+        value.ifPresent(v -> Stream.of(v.split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .forEach(pattern -> {
+                    Pattern.compile(pattern); // fail fast, javascript syntax is close enough for the validation
+                    patterns.add(pattern);
+                }));
+        return patterns;
+    }
+
+    // in-flight renders of the instance complete before it is closed
+    private void retire(final Instance instance) {
+        if (!instance.retired.compareAndSet(false, true)) {
+            return;
+        }
+        instanceCount.decrementAndGet();
+        idlePages.removeIf(page -> page.instance == instance);
+        closeIfDrained(instance);
+        // keep the minimum warm, other instances are restarted on demand
+        if (instanceCount.get() < minInstances) {
+            startInstance();
+        }
+    }
+
+    private void closeIfDrained(final Instance instance) {
+        if (instance.busyPages.get() > 0 || !instance.closed.compareAndSet(false, true)) {
+            return;
+        }
+        instances.remove(instance);
+        try {
+            executor.execute(instance::close);
+        } catch (final RejectedExecutionException ree) {
+            instance.close();
+        }
+    }
+
+    private void retireIdleInstances() {
+        final long now = System.currentTimeMillis();
+        for (final Instance instance : instances) {
+            final boolean idleTooLong = phantomJsInstanceIdleTimeout > 0
+                    && instance.busyPages.get() == 0
+                    && now - instance.lastUsage > phantomJsInstanceIdleTimeout
+                    && instanceCount.get() > minInstances;
+            if (idleTooLong || shouldRecycle(instance, now)) {
+                retire(instance);
+            }
+        }
+    }
+
+    private boolean shouldRecycle(final Instance instance, final long now) {
+        return (phantomJsInstanceMaxRenders > 0 && instance.renders.get() >= phantomJsInstanceMaxRenders)
+                || (phantomJsInstanceMaxAge > 0 && now - instance.creation >= phantomJsInstanceMaxAge);
+    }
+
+    // the process liveness is free, the session is only pinged when configured or after a failed render
+    private boolean isHealthy(final Page page) {
+        if (!page.instance.service.isRunning()) {
+            return false;
+        }
+        if (!phantomJsInstanceHealthCheck && !page.suspect) {
+            return true;
+        }
+        try {
+            page.driver.getWindowHandle();
+            page.suspect = false;
+            return true;
+        } catch (final RuntimeException re) {
+            LOGGER.log(FINE, re.getMessage(), re);
+            return false;
+        }
+    }
+
+    private <T> T await(final CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IllegalStateException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (RuntimeException.class.isInstance(cause)) {
+                throw RuntimeException.class.cast(cause);
             }
-            permits.release();
+            if (Error.class.isInstance(cause)) {
+                throw Error.class.cast(cause);
+            }
+            throw new IllegalStateException(cause);
         }
     }
 
     @PreDestroy
     private void destroy() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        executor.shutdownNow();
+        PendingTask<?> task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.result.cancel(false);
+        }
         instances.forEach(Instance::close);
     }
 
@@ -199,27 +702,80 @@ public class PhantomJsWebRenderer implements WebRenderer {
         }
     }
 
+    private enum Readiness {
+        LOAD, NETWORK_IDLE, SELECTOR, FLAG
+    }
+
+    private static final class PendingTask<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final long created = System.nanoTime();
+        private final Function<PhantomJSDriver, T> task;
+
+        private PendingTask(final Function<PhantomJSDriver, T> task) {
+            this.task = task;
+        }
+
+        private void run(final PhantomJSDriver driver) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(task.apply(driver));
+            } catch (final RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final class Page {
+        private final Instance instance;
+        private final PhantomJSDriver driver;
+        private volatile boolean suspect;
+
+        private Page(final Instance instance, final PhantomJSDriver driver) {
+            this.instance = instance;
+            this.driver = driver;
+        }
+    }
+
+    // a PhantomJS process, each page is a driver session with its own window so they render concurrently
     private static final class Instance implements AutoCloseable {
         private final PhantomJSDriverService service;
-        private final PhantomJSDriver driver;
+        private final List<Page> pages;
+        private final long creation = System.currentTimeMillis();
+        private final AtomicInteger renders = new AtomicInteger();
+        private final AtomicInteger busyPages = new AtomicInteger();
+        private final ReadWriteLock rendering = new ReentrantReadWriteLock(); // renderings (read) exclude the resets (write)
+        private final AtomicBoolean retired = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long lastUsage = creation;
 
-        public Instance(final DesiredCapabilities capabilities, final File exec) {
+        public Instance(final DesiredCapabilities capabilities, final File exec, final int pageCount) {
             service = new PhantomJSDriverService.Builder().usingPhantomJSExecutable(exec).usingAnyFreePort().build();
-            driver = new PhantomJSDriver(service, capabilities);
+            pages = new ArrayList<>(pageCount);
             try {
                 service.start();
+                for (int i = 0; i < pageCount; i++) {
+                    pages.add(new Page(this, new PhantomJSDriver(service, capabilities)));
+                }
             } catch (final IOException e) {
+                close();
                 throw new IllegalStateException(e);
+            } catch (final RuntimeException re) {
+                close();
+                throw re;
             }
         }
 
         @Override
         public void close() {
-            try {
-                driver.close();
-            } catch (final RuntimeException re) {
-                LOGGER.log(SEVERE, re.getMessage(), re);
-            }
+            pages.forEach(page -> {
+                try {
+                    page.driver.close();
+                } catch (final RuntimeException re) {
+                    LOGGER.log(SEVERE, re.getMessage(), re);
+                }
+            });
             if (service.isRunning()) {
                 try {
                     service.stop();
@@ -0,0 +1,213 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.logging.Level.WARNING;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Counters, gauges and latency histograms of the rendering and caching paths.
+ * They are exposed as attributes of the {@code com.github.rmannibucau.website.rendering:type=Metrics} MBean
+ * and as MicroProfile Metrics gauges when MicroProfile Metrics is available.
+ * Durations are exposed in milliseconds.
+ */
+@ApplicationScoped
+public class RenderingMetrics {
+    private static final Logger LOGGER = Logger.getLogger(RenderingMetrics.class.getName());
+    private static final String OBJECT_NAME = "com.github.rmannibucau.website.rendering:type=Metrics";
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.metrics.jmx", defaultValue = "true")
+    private Boolean jmx;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.metrics.microprofile", defaultValue = "true")
+    private Boolean microprofile;
+
+    @Inject
+    @Any
+    private Instance<MetricsExporter> availableExporters;
+
+    private final ConcurrentMap<String, Supplier<? extends Number>> values = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final List<MetricsExporter> exporters = new ArrayList<>();
+    private ObjectName objectName;
+
+    @PostConstruct
+    private void init() {
+        if (microprofile) {
+            availableExporters.forEach(exporters::add);
+        }
+        if (jmx) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) { // another application
+                    LOGGER.warning(OBJECT_NAME + " already registered, skipping the JMX registration");
+                } else {
+                    server.registerMBean(new MetricsMBean(), name);
+                    objectName = name;
+                }
+            } catch (final JMException | RuntimeException e) {
+                LOGGER.log(WARNING, "Can't register " + OBJECT_NAME + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (final JMException e) {
+                LOGGER.log(WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param name the counter name.
+     * @return the counter, created if needed.
+     */
+    public LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, key -> {
+            final LongAdder counter = new LongAdder();
+            gauge(key, counter::sum);
+            return counter;
+        });
+    }
+
+    /**
+     * Exposes the count, mean, 50th, 90th and 99th percentiles and max as {@code <name>.<statistic>} values.
+     *
+     * @param name the histogram name.
+     * @return the histogram, created if needed.
+     */
+    public LatencyHistogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, key -> {
+            final LatencyHistogram histogram = new LatencyHistogram();
+            gauge(key + ".count", histogram::getCount);
+            gauge(key + ".mean", () -> toMillis(histogram.getMean()));
+            gauge(key + ".p50", () -> toMillis(histogram.getPercentile(.5)));
+            gauge(key + ".p90", () -> toMillis(histogram.getPercentile(.9)));
+            gauge(key + ".p99", () -> toMillis(histogram.getPercentile(.99)));
+            gauge(key + ".max", () -> toMillis(histogram.getMax()));
+            return histogram;
+        });
+    }
+
+    /**
+     * @param name the gauge name, a gauge registered again with the same name replaces the previous one.
+     * @param value the gauge value provider, called each time the gauge is read.
+     */
+    public void gauge(final String name, final Supplier<? extends Number> value) {
+        if (values.put(name, value) == null) {
+            exporters.forEach(exporter -> {
+                try {
+                    exporter.register(name, () -> getValue(name));
+                } catch (final RuntimeException re) { // already registered by another application for instance
+                    LOGGER.log(WARNING, "Can't export " + name + ": " + re.getMessage(), re);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the current values sorted by name.
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> snapshot = new ConcurrentSkipListMap<>();
+        values.keySet().forEach(name -> {
+            final Number value = getValue(name);
+            if (value != null) {
+                snapshot.put(name, value);
+            }
+        });
+        return snapshot;
+    }
+
+    private Number getValue(final String name) {
+        final Supplier<? extends Number> supplier = values.get(name);
+        return supplier == null ? null : supplier.get();
+    }
+
+    private static double toMillis(final double nanos) {
+        return nanos / MILLISECONDS.toNanos(1);
+    }
+
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            final Number value = getValue(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            final AttributeList list = new AttributeList();
+            for (final String attribute : attributes) {
+                final Number value = getValue(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Read only attribute: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        // the attributes are the values registered when the info is requested, metrics are lazily registered
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(RenderingMetrics.class.getName(), "Website rendering metrics",
+                    snapshot().entrySet().stream()
+                            .map(e -> new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false))
+                            .toArray(MBeanAttributeInfo[]::new),
+                    null, null, null);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Locale.ROOT;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Bounded queue of the renderings waiting for a free rendering slot. Tasks are polled by priority
+ * and when the queue is full the configured {@link Shedding} decides which task is dropped.
+ * The sequences of the tasks must be unique, the victim of a shedding is found in O(log n).
+ */
+class RenderingQueue {
+    private static final Comparator<Task> COMPARATOR = Comparator
+            .comparingLong((Task task) -> -task.priority)
+            .thenComparingLong(task -> task.sequence);
+
+    private final NavigableSet<Task> tasks = new TreeSet<>(COMPARATOR);
+    private final NavigableSet<Task> bySequence; // only to drop the oldest
+    private final int capacity;
+    private final Shedding shedding;
+
+    RenderingQueue(final int capacity, final Shedding shedding) {
+        this.capacity = capacity;
+        this.shedding = shedding;
+        this.bySequence = shedding == Shedding.DROP_OLDEST ? new TreeSet<>(Comparator.comparingLong(task -> task.sequence)) : null;
+    }
+
+    boolean offer(final Task task) {
+        final Task shed;
+        synchronized (tasks) {
+            if (tasks.size() < capacity) {
+                shed = null;
+            } else {
+                switch (shedding) {
+                    case DROP_OLDEST:
+                        shed = bySequence.pollFirst();
+                        break;
+                    case DROP_LOWEST_PRIORITY:
+                        shed = tasks.last();
+                        if (COMPARATOR.compare(task, shed) >= 0) {
+                            return false;
+                        }
+                        break;
+                    case REJECT:
+                    default:
+                        return false;
+                }
+                tasks.remove(shed);
+            }
+            tasks.add(task);
+            if (bySequence != null) {
+                bySequence.add(task);
+            }
+        }
+        if (shed != null) {
+            shed.onShed();
+        }
+        return true;
+    }
+
+    Task poll() {
+        synchronized (tasks) {
+            final Task task = tasks.pollFirst();
+            if (task != null && bySequence != null) {
+                bySequence.remove(task);
+            }
+            return task;
+        }
+    }
+
+    int size() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    int remainingCapacity() {
+        synchronized (tasks) {
+            return Math.max(0, capacity - tasks.size());
+        }
+    }
+
+    Collection<Task> drain() {
+        synchronized (tasks) {
+            final Collection<Task> drained = new ArrayList<>(tasks);
+            tasks.clear();
+            if (bySequence != null) {
+                bySequence.clear();
+            }
+            return drained;
+        }
+    }
+
+    enum Shedding {
+        REJECT, DROP_OLDEST, DROP_LOWEST_PRIORITY;
+
+        static Shedding from(final String value) {
+            return valueOf(value.trim().toUpperCase(ROOT).replace('-', '_'));
+        }
+    }
+
+    abstract static class Task implements Runnable {
+        private final Runnable delegate;
+        private final long priority;
+        private final long sequence;
+
+        Task(final Runnable delegate, final long priority, final long sequence) {
+            this.delegate = delegate;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+
+        /**
+         * Called when the task is dropped from the queue to let the submitter release its resources.
+         */
+        protected abstract void onShed();
+    }
+}
@@ -1,25 +1,33 @@
 package com.github.rmannibucau.website.rendering.internal;
 
 import static java.lang.Thread.sleep;
+import static java.util.Locale.ROOT;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.WARNING;
 import static javax.servlet.DispatcherType.REQUEST;
 
 import java.io.IOException;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
 import javax.enterprise.context.Dependent;
@@ -34,8 +42,11 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
 import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+import com.github.rmannibucau.website.rendering.spi.RenderingLease;
 import com.github.rmannibucau.website.rendering.spi.RequestUrlMapper;
 
 import org.eclipse.microprofile.config.Config;
@@ -45,9 +56,11 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 @Dependent
 public class ServerRenderingFilter implements Filter {
     private static final Logger LOGGER = Logger.getLogger(ServerRenderingFilter.class.getName());
+    private static final String DEFAULT_BOTS = "bot|crawl|spider|slurp|facebookexternalhit|embedly|quora link preview|"
+            + "outbrain|pinterest|vkshare|w3c_validator|whatsapp|skypeuripreview|nuzzel|redditbot|lighthouse";
 
     @Inject
-    private PhantomJsWebRenderer renderer;
+    private WebRenderer renderer;
 
     @Inject
     private HtmlCache cache;
@@ -55,55 +68,165 @@ public class ServerRenderingFilter implements Filter {
     @Inject
     private RequestUrlMapper requestUrlMapper;
 
+    @Inject
+    private ContentEncodings contentEncodings;
+
+    @Inject
+    private HtmlPostProcessors postProcessors;
+
+    @Inject
+    private RenderingMetrics metrics;
+
+    @Inject
+    private RenderingLease lease;
+
+    // historical name, it is now the maximum number of concurrent renderings since no thread waits for them
     @Inject
     @ConfigProperty(name = "rmannibucau.website.rendering.web.thread.pool.size", defaultValue = "64")
-    private Integer poolSize;
+    private Integer maxConcurrentRenderings;
 
     @Inject
     @ConfigProperty(name = "rmannibucau.website.rendering.web.thread.pool.timeout", defaultValue = "18000")
     private Integer timeout;
 
-    private ExecutorService pool;
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.cache.ttl", defaultValue = "0")
+    private Long ttl;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.pending.wait", defaultValue = "0")
+    private Integer pendingWait;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.queue.capacity", defaultValue = "1024")
+    private Integer queueCapacity;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.queue.priority", defaultValue = "fifo")
+    private String queuePriority;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.queue.shedding", defaultValue = "reject")
+    private String queueShedding;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.conditional", defaultValue = "true")
+    private Boolean conditional;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.lease.pollInterval", defaultValue = "500")
+    private Long leasePollInterval;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.admission.hits", defaultValue = "1")
+    private Integer admissionHits;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.admission.window", defaultValue = "300000")
+    private Long admissionWindow;
+
+    // sizes the frequency sketches (4 x 4 bytes per url), too small they see every url as frequently requested
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.frequency.expectedUrls", defaultValue = "16384")
+    private Integer frequencyExpectedUrls;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.bots.routing", defaultValue = "all")
+    private String botsRouting;
+
+    @Inject
+    @ConfigProperty(name = "rmannibucau.website.rendering.web.bots.pattern", defaultValue = DEFAULT_BOTS)
+    private String botsPattern;
+
+    private RenderingQueue queue;
+    private final AtomicInteger inFlightRenderings = new AtomicInteger();
+    private final AtomicInteger dispatchRequests = new AtomicInteger();
+    private Priority priority;
+    private FrequencySketch frequencies;
+    private HitAdmission admission;
+    private BotsRouting routing;
+    private Pattern bots;
+    private final AtomicLong sequence = new AtomicLong();
+    private ScheduledThreadPoolExecutor timeoutSupervisor;
+    private ExecutorService dispatcher;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    private LatencyHistogram serveDuration;
+    private LatencyHistogram queueWait;
+    private LatencyHistogram renderDuration;
+    private LongAdder hits;
+    private LongAdder staleHits;
+    private LongAdder notModified;
+    private LongAdder misses;
+    private LongAdder failures;
+    private LongAdder timeouts;
+    private LongAdder shed;
+    private LongAdder bypassed;
+    private LongAdder notAdmitted;
+    private LongAdder remoteRenderings;
 
-    private final ConcurrentMap<String, AtomicReference<Future<?>>> inProgressRenderings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<String>> inProgressRenderings = new ConcurrentHashMap<>();
 
     @Override
     public void init(final FilterConfig filterConfig) {
-        pool = Executors.newScheduledThreadPool(poolSize);
-        pool.submit(() -> {
-            while (running.get()) {
-                new HashMap<>(inProgressRenderings).forEach((url, futureRef) -> {
-                    final Future<?> future = futureRef.get();
-                    if (future == null) {
-                        return;
-                    }
-                    try {
-                        future.get(timeout, MILLISECONDS);
-                    } catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    } catch (final TimeoutException | ExecutionException e) {
-                        inProgressRenderings.remove(url);
-                        LOGGER.log(WARNING, e.getMessage(), e);
-                    }
-                });
-            }
-        });
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.web.queue.capacity must be positive");
+        }
+        if (frequencyExpectedUrls <= 0) {
+            throw new IllegalArgumentException("rmannibucau.website.rendering.web.frequency.expectedUrls must be positive");
+        }
+        priority = Priority.valueOf(queuePriority.trim().toUpperCase(ROOT));
+        if (priority == Priority.HITS) {
+            frequencies = new FrequencySketch(frequencyExpectedUrls, frequencyExpectedUrls * 10);
+        }
+        queue = new RenderingQueue(queueCapacity, RenderingQueue.Shedding.from(queueShedding));
+        if (admissionHits > 1) {
+            admission = new HitAdmission(admissionHits, admissionWindow, frequencyExpectedUrls, System::currentTimeMillis);
+        }
+        routing = BotsRouting.valueOf(botsRouting.trim().toUpperCase(ROOT));
+        bots = Pattern.compile(botsPattern, Pattern.CASE_INSENSITIVE);
+
+        // each rendering registers its own deadline so nothing polls while idle,
+        // and cancelled deadlines are dropped from the queue as soon as the rendering completes
+        timeoutSupervisor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("rendering-timeout"));
+        timeoutSupervisor.setRemoveOnCancelPolicy(true);
+        timeoutSupervisor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // starting a rendering can wait for the lease and the cache, it never runs on the thread releasing a slot
+        dispatcher = Executors.newFixedThreadPool(Math.min(maxConcurrentRenderings, Math.max(2, Runtime.getRuntime().availableProcessors())),
+                new NamedThreadFactory("rendering-dispatcher"));
+
+        serveDuration = metrics.histogram("filter.serve");
+        hits = metrics.counter("filter.hits");
+        staleHits = metrics.counter("filter.staleHits");
+        notModified = metrics.counter("filter.notModified");
+        misses = metrics.counter("filter.misses");
+        queueWait = metrics.histogram("renderings.queueWait");
+        renderDuration = metrics.histogram("renderings.duration");
+        failures = metrics.counter("renderings.failures");
+        timeouts = metrics.counter("renderings.timeouts");
+        shed = metrics.counter("renderings.shed");
+        bypassed = metrics.counter("filter.bypassed");
+        notAdmitted = metrics.counter("renderings.notAdmitted");
+        remoteRenderings = metrics.counter("renderings.remote");
+        metrics.gauge("renderings.inProgress", inProgressRenderings::size);
+        metrics.gauge("renderings.inFlight", inFlightRenderings::get);
+        metrics.gauge("renderings.queued", queue::size);
     }
 
     @Override
     public void destroy() {
         running.set(false);
-        pool.shutdown();
+        queue.drain().forEach(RenderingQueue.Task::onShed);
 
         int remainingWaitIterations = (int) (TimeUnit.MINUTES.toMillis(1) / 250);
-        while (--remainingWaitIterations > 0 && !pool.isTerminated()) {
+        while (--remainingWaitIterations > 0 && inFlightRenderings.get() > 0) {
             try {
                 sleep(250);
             } catch (final InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
         }
+        timeoutSupervisor.shutdownNow();
+        dispatcher.shutdownNow();
     }
 
     @Override
@@ -122,27 +245,432 @@ public class ServerRenderingFilter implements Filter {
     }
 
     private void doFilterImpl(final HttpServletRequest request, final ServletResponse servletResponse, final FilterChain chain) throws IOException, ServletException {
+        final boolean bot = routing != BotsRouting.ALL && isBot(request);
+        if (routing == BotsRouting.BOTS && HttpServletResponse.class.isInstance(servletResponse)) { // shared caches must not mix both
+            HttpServletResponse.class.cast(servletResponse).addHeader("Vary", "User-Agent");
+        }
+        if (routing == BotsRouting.BOTS && !bot) { // humans get the client rendered application
+            bypassed.increment();
+            chain.doFilter(request, servletResponse);
+            return;
+        }
+
+        final long start = System.nanoTime();
         final String url = requestUrlMapper.toAbsoluteUrl(request);
-        final String html = cache.get(url);
-        if (html != null) {
-            servletResponse.getWriter().write(html);
+        if (frequencies != null) {
+            frequencies.increment(url);
+        }
+        final HtmlCache.Entry entry = cache.getEntry(url);
+        if (entry != null && serve(request, servletResponse, entry)) {
+            serveDuration.recordSince(start);
+            hits.increment();
+            if (isStale(entry)) { // serve the stale page but refresh it for next requests
+                staleHits.increment();
+                if (running.get() && (routing != BotsRouting.RENDER || bot)) {
+                    render(url, true);
+                }
+            }
             return;
         }
+        misses.increment();
+
+        if (pendingWait > 0) {
+            final String rendered = awaitPendingRendering(url);
+            if (rendered != null) {
+                servletResponse.getWriter().write(rendered);
+                return;
+            }
+        }
 
         chain.doFilter(request, servletResponse);
 
-        if (running.get()) {
-            final AtomicReference<Future<?>> ref = new AtomicReference<>();
-            final Future<?> future = pool.submit(() -> {
-                if (inProgressRenderings.putIfAbsent(url, ref) == null) {
-                    try {
-                        cache.putIfAbsent(url, renderer.capture(url));
-                    } finally {
-                        inProgressRenderings.remove(url);
-                    }
+        if (running.get() && isAdmitted(url, bot)) {
+            render(url, false);
+        }
+    }
+
+    // only spend the rendering capacity on pages which will likely be served again
+    private boolean isAdmitted(final String url, final boolean bot) {
+        if (routing == BotsRouting.RENDER && !bot) {
+            notAdmitted.increment();
+            return false;
+        }
+        if (admission != null && !inProgressRenderings.containsKey(url) && !admission.admit(url)) {
+            notAdmitted.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isBot(final HttpServletRequest request) {
+        final String userAgent = request.getHeader("User-Agent");
+        return userAgent != null && bots.matcher(userAgent).find();
+    }
+
+    // prefer precomputed bytes to avoid to encode (and compress) the page for each request,
+    // validators are only set once the page is known to be served so a concurrent eviction falls back on the application
+    private boolean serve(final HttpServletRequest request, final ServletResponse servletResponse,
+                          final HtmlCache.Entry entry) throws IOException {
+        final HttpServletResponse response = HttpServletResponse.class.isInstance(servletResponse) ?
+                HttpServletResponse.class.cast(servletResponse) : null;
+        final boolean negotiated = response != null && !entry.getEncodings().isEmpty();
+        final String encoding = negotiated ?
+                contentEncodings.negotiate(request.getHeader("Accept-Encoding"), entry.getEncodings()) : null;
+        final String hash = response != null && conditional ? entry.getHash() : null;
+        final long lastModified = response != null && conditional ? entry.getTimestamp() : -1;
+
+        if (response != null && conditional && isNotModified(request, hash, lastModified)) {
+            if (negotiated) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            setValidators(response, hash, encoding, lastModified);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            notModified.increment();
+            return true;
+        }
+
+        if (encoding != null && entry.writeTo(encoding, length -> {
+            response.setContentType("text/html;charset=UTF-8");
+            response.addHeader("Vary", "Accept-Encoding");
+            if (!ContentEncodings.IDENTITY.equals(encoding)) {
+                response.setHeader("Content-Encoding", encoding);
+            }
+            setValidators(response, hash, encoding, lastModified);
+            response.setContentLengthLong(length);
+            return response.getOutputStream();
+        })) {
+            return true;
+        }
+        final String html = entry.getHtml();
+        if (html == null) { // evicted concurrently
+            return false;
+        }
+        if (response != null) {
+            setValidators(response, hash, null, lastModified);
+        }
+        servletResponse.getWriter().write(html);
+        return true;
+    }
+
+    // each encoding is a different representation so it gets its own strong etag
+    private void setValidators(final HttpServletResponse response, final String hash, final String encoding, final long lastModified) {
+        if (hash != null) {
+            response.setHeader("ETag", '"' + (encoding == null || ContentEncodings.IDENTITY.equals(encoding) ?
+                    hash : hash + '-' + encoding) + '"');
+        }
+        if (lastModified >= 0) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+    }
+
+    // If-Modified-Since is ignored when If-None-Match is present (RFC 7232),
+    // etags are compared weakly so any encoding of the same page matches
+    static boolean isNotModified(final HttpServletRequest request, final String hash, final long lastModified) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (final String value : ifNoneMatch.split(",")) {
+                String tag = value.trim();
+                if ("*".equals(tag)) {
+                    return true;
+                }
+                if (hash == null) {
+                    continue;
+                }
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
                 }
-            });
-            ref.set(future);
+                if (tag.length() >= 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+                    tag = tag.substring(1, tag.length() - 1);
+                }
+                if (tag.equals(hash) || tag.startsWith(hash + '-')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified < 0) {
+            return false;
+        }
+        final long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (final IllegalArgumentException iae) { // invalid date, serve the page
+            return false;
+        }
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000; // http dates are in seconds
+    }
+
+    private boolean isStale(final HtmlCache.Entry entry) {
+        return ttl > 0 && entry.getTimestamp() >= 0 && System.currentTimeMillis() - entry.getTimestamp() > ttl;
+    }
+
+    /**
+     * Single flight rendering: whatever the number of concurrent misses for an url,
+     * only the first one allocates and submits a task, others get the pending result.
+     * The rendering lease is acquired when the rendering leaves the queue so it can't expire while queued.
+     * If another node owns the rendering lease of the page, a miss waits for the page to be in the cache
+     * and a refresh is skipped (the stale page is served until the other node stored the new one),
+     * in both cases the result can be null.
+     *
+     * @param url the url to render.
+     * @param refresh should the rendering replace the cached page if it exists.
+     * @return the pending rendering for this url.
+     */
+    CompletableFuture<String> render(final String url, final boolean refresh) {
+        final CompletableFuture<String> pending = inProgressRenderings.get(url);
+        if (pending != null) {
+            return pending;
+        }
+
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final CompletableFuture<String> concurrent = inProgressRenderings.putIfAbsent(url, result);
+        if (concurrent != null) {
+            return concurrent;
+        }
+        result.whenComplete((rendered, error) -> inProgressRenderings.remove(url, result));
+
+        final long order = sequence.incrementAndGet();
+        final long enqueued = System.nanoTime();
+        final RenderingQueue.Task task = new RenderingQueue.Task(() -> {
+            queueWait.recordSince(enqueued);
+            doRender(url, refresh, result);
+        }, priorityOf(url, order), order) {
+            @Override
+            protected void onShed() {
+                shed.increment();
+                result.completeExceptionally(new RejectedExecutionException("Rendering of " + url + " was shed"));
+            }
+        };
+        if (!queue.offer(task)) {
+            task.onShed();
+            return result;
+        }
+        dispatch();
+        return result;
+    }
+
+    // false if the rendering must not run, the result is then completed (or will be by the remote check)
+    private boolean acquireLease(final String url, final boolean refresh, final CompletableFuture<String> result) {
+        final boolean leased;
+        try {
+            leased = lease.tryAcquire(url);
+        } catch (final RuntimeException re) {
+            LOGGER.log(WARNING, "Can't acquire the rendering lease of " + url + ": " + re.getMessage(), re);
+            result.completeExceptionally(re);
+            return false;
+        }
+        if (!leased) {
+            remoteRenderings.increment();
+            if (refresh) {
+                result.complete(null);
+            } else {
+                scheduleRemoteCheck(url, result, System.currentTimeMillis() + timeout);
+            }
+            return false;
+        }
+        result.whenComplete((rendered, error) -> releaseLease(url));
+
+        // another node can have stored the page while this rendering was queued
+        final HtmlCache.Entry entry;
+        try {
+            entry = cache.getEntry(url);
+        } catch (final RuntimeException re) {
+            result.completeExceptionally(re);
+            return false;
+        }
+        if (entry != null && (!refresh || !isStale(entry))) {
+            result.complete(entry.getHtml());
+            return false;
+        }
+        return true;
+    }
+
+    // polls the cache without holding a rendering slot until the page rendered by another node is there,
+    // the cache is read on the dispatcher to not delay the deadlines
+    private void scheduleRemoteCheck(final String url, final CompletableFuture<String> result, final long deadline) {
+        try {
+            timeoutSupervisor.schedule(() -> {
+                try {
+                    dispatcher.execute(() -> checkRemoteRendering(url, result, deadline));
+                } catch (final RejectedExecutionException ree) { // shutting down
+                    result.complete(null);
+                }
+            }, leasePollInterval, MILLISECONDS);
+        } catch (final RejectedExecutionException ree) { // shutting down
+            result.complete(null);
+        }
+    }
+
+    private void checkRemoteRendering(final String url, final CompletableFuture<String> result, final long deadline) {
+        final String html;
+        try {
+            html = cache.get(url);
+        } catch (final RuntimeException re) {
+            result.completeExceptionally(re);
+            return;
+        }
+        if (html != null || !running.get() || System.currentTimeMillis() >= deadline) {
+            result.complete(html);
+        } else {
+            scheduleRemoteCheck(url, result, deadline);
+        }
+    }
+
+    private void releaseLease(final String url) {
+        try {
+            lease.release(url);
+        } catch (final RuntimeException re) { // it will expire
+            LOGGER.log(WARNING, "Can't release the rendering lease of " + url + ": " + re.getMessage(), re);
+        }
+    }
+
+    // starts queued renderings (on the dispatcher threads) while there are free rendering slots, a finished rendering dispatches again.
+    // A single thread dispatches at a time, concurrent (or reentrant) requests make it loop once more.
+    private void dispatch() {
+        if (dispatchRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (running.get() && inFlightRenderings.get() < maxConcurrentRenderings) {
+                final RenderingQueue.Task task = queue.poll();
+                if (task == null) {
+                    break;
+                }
+                inFlightRenderings.incrementAndGet();
+                try {
+                    dispatcher.execute(task);
+                } catch (final RejectedExecutionException ree) { // shutting down
+                    inFlightRenderings.decrementAndGet();
+                    task.onShed();
+                }
+            }
+            missed = dispatchRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private long priorityOf(final String url, final long order) {
+        switch (priority) {
+            case LIFO:
+                return order;
+            case HITS:
+                return frequencies.frequency(url);
+            case FIFO:
+            default:
+                return 0;
+        }
+    }
+
+    // called with a rendering slot acquired, it is released once the rendering completes
+    private void doRender(final String url, final boolean refresh, final CompletableFuture<String> result) {
+        final AtomicBoolean released = new AtomicBoolean();
+        final Runnable releaseSlot = () -> {
+            if (released.compareAndSet(false, true)) {
+                inFlightRenderings.decrementAndGet();
+                dispatch();
+            }
+        };
+        result.whenComplete((html, error) -> releaseSlot.run());
+        if (result.isDone()) {
+            return;
+        }
+        if (!acquireLease(url, refresh, result)) { // a remote check doesn't hold the slot
+            releaseSlot.run();
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final ScheduledFuture<?> deadline = timeoutSupervisor.schedule(() -> onTimeout(url, result), timeout, MILLISECONDS);
+        final CompletableFuture<String> capture;
+        try {
+            capture = renderer.captureAsync(url).toCompletableFuture();
+        } catch (final RuntimeException re) {
+            deadline.cancel(false);
+            failures.increment();
+            LOGGER.log(WARNING, re.getMessage(), re);
+            result.completeExceptionally(re);
+            return;
+        }
+        result.whenComplete((html, error) -> {
+            if (TimeoutException.class.isInstance(error)) {
+                capture.cancel(false); // if not yet started it will be skipped by the renderer
+            }
+        });
+        capture.whenComplete((html, error) -> {
+            deadline.cancel(false);
+            if (result.isDone()) { // timed out
+                return;
+            }
+            if (error != null) {
+                final Throwable cause = CompletionException.class.isInstance(error) && error.getCause() != null ? error.getCause() : error;
+                if (result.completeExceptionally(cause)) {
+                    failures.increment();
+                    LOGGER.log(WARNING, cause.getMessage(), cause);
+                }
+                return;
+            }
+            renderDuration.recordSince(start);
+            try {
+                final String page = postProcessors.process(url, html);
+                if (refresh) {
+                    cache.put(url, page);
+                } else {
+                    cache.putIfAbsent(url, page);
+                }
+                result.complete(page);
+            } catch (final RuntimeException re) {
+                failures.increment();
+                LOGGER.log(WARNING, re.getMessage(), re);
+                result.completeExceptionally(re);
+            }
+        });
+    }
+
+    private void onTimeout(final String url, final CompletableFuture<String> result) {
+        if (result.completeExceptionally(new TimeoutException("Rendering of " + url + " timed out after " + timeout + "ms"))) {
+            timeouts.increment();
+            LOGGER.log(WARNING, "Rendering of " + url + " timed out after " + timeout + "ms");
+        }
+    }
+
+    private String awaitPendingRendering(final String url) {
+        final CompletableFuture<String> pending = inProgressRenderings.get(url);
+        if (pending == null) {
+            return null;
+        }
+        try {
+            return pending.get(pendingWait, MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    private enum Priority {
+        FIFO, LIFO, HITS
+    }
+
+    private enum BotsRouting {
+        ALL, // every client gets the cached pages and triggers renderings
+        BOTS, // only bots get the cached pages and trigger renderings
+        RENDER // every client gets the cached pages but only bots trigger renderings
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        private final String prefix;
+
+        private NamedThreadFactory(final String name) {
+            this.prefix = ServerRenderingFilter.class.getSimpleName() + "-" + name + "-";
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
@@ -1,5 +1,13 @@
 package com.github.rmannibucau.website.rendering.spi;
 
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * Where the html pages will be stored. Default implementation relies on JCache,
  * {@link com.github.rmannibucau.website.rendering.internal.JCacheHtmlCache}.
@@ -10,4 +18,150 @@ public interface HtmlCache {
     boolean putIfAbsent(final String key, final String html);
 
     boolean invalidate(final String key);
+
+    /**
+     * Same as {@link #get(String)} but also returns the metadata of the page,
+     * default implementation doesn't know when the page was rendered.
+     *
+     * @param key the page key.
+     * @return the cached page or null if absent.
+     */
+    default Entry getEntry(final String key) {
+        final String html = get(key);
+        return html == null ? null : new Entry(html, -1);
+    }
+
+    /**
+     * Adds or replaces a page, used to refresh a page still served from the cache.
+     * Default implementation is not atomic and should be overridden when the storage supports it.
+     *
+     * @param key the page key.
+     * @param html the rendered page.
+     * @return true if the page was stored.
+     */
+    default boolean put(final String key, final String html) {
+        invalidate(key);
+        return putIfAbsent(key, html);
+    }
+
+    /**
+     * Used by the bulk invalidations, default implementation doesn't support it.
+     *
+     * @param prefix the beginning of the keys.
+     * @return the keys of the cached pages starting with this prefix.
+     */
+    default Collection<String> getKeysByPrefix(final String prefix) {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support the invalidation by prefix");
+    }
+
+    /**
+     * Used by the bulk invalidations, default implementation doesn't support it.
+     *
+     * @param tag a tag extracted from the pages when they were stored.
+     * @return the keys of the cached pages having this tag.
+     */
+    default Collection<String> getKeysByTag(final String tag) {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support the invalidation by tag");
+    }
+
+    /**
+     * A cached page. Implementations can subclass it to load the content lazily.
+     */
+    class Entry {
+        private final String html;
+        private final long timestamp;
+        private final Map<String, byte[]> encoded;
+        private final String hash;
+
+        public Entry(final String html, final long timestamp) {
+            this(html, timestamp, emptyMap());
+        }
+
+        /**
+         * @param html the page.
+         * @param timestamp the render date.
+         * @param encoded the precomputed content encodings (as in {@code Content-Encoding} header) of the page.
+         */
+        public Entry(final String html, final long timestamp, final Map<String, byte[]> encoded) {
+            this(html, timestamp, encoded, null);
+        }
+
+        /**
+         * @param html the page.
+         * @param timestamp the render date.
+         * @param encoded the precomputed content encodings (as in {@code Content-Encoding} header) of the page.
+         * @param hash the hash of the page content, null if unknown.
+         */
+        public Entry(final String html, final long timestamp, final Map<String, byte[]> encoded, final String hash) {
+            this.html = html;
+            this.timestamp = timestamp;
+            this.encoded = unmodifiableMap(encoded);
+            this.hash = hash;
+        }
+
+        public String getHtml() {
+            return html;
+        }
+
+        /**
+         * @return when the page was rendered (epoch in milliseconds) or a negative value if unknown.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Used as a strong validator ({@code ETag}) of the page, it must change when the page content changes.
+         *
+         * @return the hash of the page computed when it was stored or null if unknown.
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the content encodings precomputed for this page (identity being the UTF-8 bytes).
+         */
+        public Collection<String> getEncodings() {
+            return encoded.keySet();
+        }
+
+        /**
+         * @param encoding the content encoding.
+         * @return the precomputed bytes of the page for this encoding or null if not available.
+         */
+        public byte[] getEncoded(final String encoding) {
+            return encoded.get(encoding);
+        }
+
+        /**
+         * Streams the page with the requested encoding, implementations can override it to avoid to load the page in memory.
+         *
+         * @param encoding the content encoding.
+         * @param sink where to write the page.
+         * @return false if the encoding is not available, in this case nothing was written.
+         * @throws IOException if the page can't be written.
+         */
+        public boolean writeTo(final String encoding, final Sink sink) throws IOException {
+            final byte[] bytes = getEncoded(encoding);
+            if (bytes == null) {
+                return false;
+            }
+            sink.open(bytes.length).write(bytes);
+            return true;
+        }
+
+        /**
+         * Where to write a page, it is only opened when the page is available.
+         */
+        @FunctionalInterface
+        public interface Sink {
+            /**
+             * @param length the number of bytes which will be written.
+             * @return the stream to write the page to.
+             * @throws IOException if the stream can't be opened.
+             */
+            OutputStream open(long length) throws IOException;
+        }
+    }
 }
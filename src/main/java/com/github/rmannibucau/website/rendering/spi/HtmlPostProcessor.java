@@ -0,0 +1,23 @@
+package com.github.rmannibucau.website.rendering.spi;
+
+/**
+ * Transforms a rendered page once, before it is cached. It is typically used to inline the critical CSS
+ * or to remove what crawlers don't need.
+ * All the CDI beans implementing this interface are applied, sorted by {@link #order()},
+ * after the built-in processors activated with {@code rmannibucau.website.rendering.postprocessors}.
+ */
+public interface HtmlPostProcessor {
+    /**
+     * @param url the rendered url.
+     * @param html the rendered page (or the output of the previous processor).
+     * @return the page to cache.
+     */
+    String process(String url, String html);
+
+    /**
+     * @return the position of this processor in the chain, lowest first.
+     */
+    default int order() {
+        return 0;
+    }
+}
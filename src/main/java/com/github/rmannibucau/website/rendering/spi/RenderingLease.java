@@ -0,0 +1,19 @@
+package com.github.rmannibucau.website.rendering.spi;
+
+/**
+ * Coordinates the renderings of the nodes sharing the same cache so a page is only rendered by one node at a time.
+ * Default implementation doesn't coordinate anything or relies on JCache,
+ * {@link com.github.rmannibucau.website.rendering.internal.DefaultRenderingLease}.
+ */
+public interface RenderingLease {
+    /**
+     * @param url the page to render.
+     * @return true if this node owns the rendering of the page until it is released or the lease expires.
+     */
+    boolean tryAcquire(String url);
+
+    /**
+     * @param url a page this node acquired the lease for.
+     */
+    void release(String url);
+}
@@ -0,0 +1,238 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.rmannibucau.website.rendering.api.WebRenderer;
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+import com.github.rmannibucau.website.rendering.spi.RenderingLease;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheWarmerTest {
+    private final StubRenderer renderer = new StubRenderer();
+    private final MapCache cache = new MapCache();
+    private final Collection<String> leased = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger maxLeased = new AtomicInteger();
+    private final Collection<CacheWarmer> warmers = new ArrayList<>();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("cache-warmer").toFile();
+    }
+
+    @After
+    public void destroy() throws IOException {
+        warmers.forEach(TestBeans::destroy);
+        renderer.scheduler.shutdownNow();
+        try (final Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void urlsAndFile() throws IOException {
+        final File file = new File(directory, "urls.txt");
+        Files.write(file.toPath(), "# pages\n\nhttp://app/3\n  http://app/2  \n".getBytes(StandardCharsets.UTF_8));
+        final CacheWarmer warmer = newWarmer(
+                "rmannibucau.website.rendering.warmup.urls", "http://app/1, http://app/2 ,,",
+                "rmannibucau.website.rendering.warmup.file", file.getAbsolutePath());
+        assertEquals(asList("http://app/1", "http://app/2", "http://app/3"), new ArrayList<>(warmer.findUrls()));
+    }
+
+    @Test
+    public void sitemapIndex() throws IOException {
+        final File first = new File(directory, "sitemap-1.xml");
+        Files.write(first.toPath(), urlSet("http://app/1", "http://app/2"));
+        final File second = new File(directory, "sitemap-2.xml.gz");
+        try (final OutputStream stream = new GZIPOutputStream(Files.newOutputStream(second.toPath()))) {
+            stream.write(urlSet("http://app/2", "http://app/3"));
+        }
+        final File index = new File(directory, "sitemap.xml");
+        Files.write(index.toPath(), ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n" +
+                "  <sitemap><loc>" + first.toURI() + "</loc><lastmod>2018-01-01</lastmod></sitemap>\n" +
+                "  <sitemap><loc> " + second.getAbsolutePath() + " </loc></sitemap>\n" +
+                "</sitemapindex>").getBytes(StandardCharsets.UTF_8));
+        final CacheWarmer warmer = newWarmer("rmannibucau.website.rendering.warmup.sitemap", index.getAbsolutePath());
+        assertEquals(asList("http://app/1", "http://app/2", "http://app/3"), new ArrayList<>(warmer.findUrls()));
+    }
+
+    @Test
+    public void rate() throws Exception {
+        final CacheWarmer warmer = newWarmer("rmannibucau.website.rendering.warmup.rate", "20"); // a rendering every 50ms
+        final long start = System.nanoTime();
+        warmer.warmUp(asList("http://app/1", "http://app/2", "http://app/3", "http://app/4", "http://app/5")).get(1, MINUTES);
+        assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(200));
+        assertEquals(5, warmer.getRendered());
+        assertEquals(5, cache.pages.size());
+    }
+
+    @Test
+    public void skipped() throws Exception {
+        cache.putIfAbsent("http://app/1", "<html>cached</html>");
+        leased.add("http://app/2"); // rendered by another node
+        final CacheWarmer warmer = newWarmer();
+        warmer.warmUp(asList("http://app/1", "http://app/2", "http://app/3")).get(1, MINUTES);
+        assertEquals(2, warmer.getSkipped());
+        assertEquals(1, warmer.getRendered());
+        assertEquals("<html>cached</html>", cache.get("http://app/1"));
+        assertNull(cache.get("http://app/2"));
+        assertEquals("<html>http://app/3</html>", cache.get("http://app/3"));
+        assertEquals(new HashSet<>(asList("http://app/3")), renderer.rendered);
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        cache.putIfAbsent("http://app/1", "<html>cached</html>");
+        final CacheWarmer warmer = newWarmer("rmannibucau.website.rendering.warmup.refresh", "true");
+        warmer.warmUp(asList("http://app/1", "http://app/2")).get(1, MINUTES);
+        assertEquals(0, warmer.getSkipped());
+        assertEquals(2, warmer.getRendered());
+        assertEquals("<html>http://app/1</html>", cache.get("http://app/1"));
+    }
+
+    @Test
+    public void timeoutKeepsTheSlot() throws Exception {
+        renderer.duration = 200;
+        final CacheWarmer warmer = newWarmer(
+                "rmannibucau.website.rendering.warmup.concurrency", "1",
+                "rmannibucau.website.rendering.warmup.timeout", "50");
+        warmer.warmUp(asList("http://app/1", "http://app/2", "http://app/3")).get(1, MINUTES);
+        assertEquals(3, warmer.getFailed());
+        assertEquals(1, renderer.maxActive.get()); // the renderer never got a page while it was still rendering a timed out one
+        assertTrue(cache.pages.isEmpty());
+        assertTrue(leased.isEmpty());
+    }
+
+    @Test
+    public void leasedOnceStarted() throws Exception {
+        renderer.duration = 100;
+        final CacheWarmer warmer = newWarmer("rmannibucau.website.rendering.warmup.concurrency", "1");
+        warmer.warmUp(asList("http://app/1", "http://app/2", "http://app/3")).get(1, MINUTES);
+        assertEquals(3, warmer.getRendered());
+        assertEquals(1, maxLeased.get()); // the waiting pages are not leased
+        assertTrue(leased.isEmpty());
+    }
+
+    private static byte[] urlSet(final String... urls) {
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+        for (final String url : urls) {
+            xml.append("  <url><loc>").append(url).append("</loc><changefreq>daily</changefreq></url>\n");
+        }
+        return xml.append("</urlset>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private CacheWarmer newWarmer(final String... configuration) {
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("renderer", renderer);
+        fields.put("cache", cache);
+        fields.put("postProcessors", TestBeans.create(HtmlPostProcessors.class, emptyMap()));
+        fields.put("metrics", TestBeans.metrics());
+        fields.put("lease", new RenderingLease() {
+            @Override
+            public boolean tryAcquire(final String url) {
+                if (!leased.add(url)) {
+                    return false;
+                }
+                maxLeased.accumulateAndGet(leased.size(), Math::max);
+                return true;
+            }
+
+            @Override
+            public void release(final String url) {
+                leased.remove(url);
+            }
+        });
+        final CacheWarmer warmer = TestBeans.create(CacheWarmer.class, fields, TestBeans.configuration(configuration));
+        warmers.add(warmer);
+        return warmer;
+    }
+
+    private static final class StubRenderer implements WebRenderer {
+        private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        private final Collection<String> rendered = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private volatile long duration;
+
+        @Override
+        public <T> void withDriver(final Class<T> expectedApi, final Consumer<T> consumer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String capture(final String url) {
+            return captureAsync(url).toCompletableFuture().join();
+        }
+
+        @Override
+        public CompletionStage<String> captureAsync(final String url) {
+            final int current = active.incrementAndGet();
+            maxActive.accumulateAndGet(current, Math::max);
+            final CompletableFuture<String> result = new CompletableFuture<>();
+            scheduler.schedule(() -> {
+                rendered.add(url);
+                active.decrementAndGet();
+                result.complete("<html>" + url + "</html>");
+            }, duration, MILLISECONDS);
+            return result;
+        }
+    }
+
+    private static final class MapCache implements HtmlCache {
+        private final Map<String, String> pages = new ConcurrentHashMap<>();
+
+        @Override
+        public String get(final String key) {
+            return pages.get(key);
+        }
+
+        @Override
+        public boolean putIfAbsent(final String key, final String html) {
+            return pages.putIfAbsent(key, html) == null;
+        }
+
+        @Override
+        public boolean put(final String key, final String html) {
+            pages.put(key, html);
+            return true;
+        }
+
+        @Override
+        public boolean invalidate(final String key) {
+            return pages.remove(key) != null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// runs only when a Chrome or Chromium is installed
+public class ChromeWebRendererTest {
+    private static final String[] EXECUTABLES = {"chromium", "chromium-browser", "google-chrome", "google-chrome-stable", "chrome"};
+
+    private static final String LATE_RENDERING = "<script>setTimeout(function () {" +
+            "document.body.appendChild(document.createElement('div')).id = 'ready';" +
+            "document.getElementById('ready').textContent = 'rendered late';" +
+            "}, 1000);</script>";
+
+    private final Collection<ChromeWebRenderer> renderers = new ArrayList<>();
+    private File directory;
+    private String chrome;
+
+    @Before
+    public void init() throws IOException {
+        chrome = findChrome();
+        assumeTrue("No Chrome installed", chrome != null);
+        directory = Files.createTempDirectory("chrome-web-renderer").toFile();
+    }
+
+    @After
+    public void destroy() throws IOException {
+        renderers.forEach(TestBeans::destroy);
+        if (directory != null) {
+            try (final Stream<Path> files = Files.walk(directory.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    @Test
+    public void capture() throws IOException {
+        final ChromeWebRenderer renderer = newRenderer();
+        final String html = renderer.capture(page("index.html", "<h1>Static</h1>" +
+                "<script>document.body.appendChild(document.createElement('p')).textContent = 'Generated';</script>"));
+        assertTrue(html, html.contains("<h1>Static</h1>"));
+        assertTrue(html, html.contains("<p>Generated</p>"));
+    }
+
+    @Test
+    public void concurrentCaptures() throws Exception {
+        final ChromeWebRenderer renderer = newRenderer();
+        final List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            urls.add(page("page-" + i + ".html", "<h1>Page " + i + "</h1>"));
+        }
+        final List<CompletableFuture<String>> captures = urls.stream() // more pages than tabs, some wait for a tab
+                .map(it -> renderer.captureAsync(it).toCompletableFuture())
+                .collect(toList());
+        CompletableFuture.allOf(captures.toArray(new CompletableFuture<?>[0])).get(1, MINUTES);
+        IntStream.range(0, captures.size()).forEach(i -> {
+            final String html = captures.get(i).join();
+            assertTrue(html, html.contains("<h1>Page " + i + "</h1>"));
+        });
+    }
+
+    @Test
+    public void selectorReadiness() throws IOException {
+        final ChromeWebRenderer renderer = newRenderer(
+                "rmannibucau.website.rendering.chrome.readiness", "selector",
+                "rmannibucau.website.rendering.chrome.readiness.selector", "#ready");
+        final String html = renderer.capture(page("selector.html", LATE_RENDERING));
+        assertTrue(html, html.contains("<div id=\"ready\">rendered late</div>"));
+    }
+
+    @Test
+    public void flagReadiness() throws IOException {
+        final ChromeWebRenderer renderer = newRenderer("rmannibucau.website.rendering.chrome.readiness", "flag");
+        final String html = renderer.capture(page("flag.html", LATE_RENDERING +
+                "<script>setTimeout(function () { window.renderComplete = true; }, 1200);</script>"));
+        assertTrue(html, html.contains("<div id=\"ready\">rendered late</div>"));
+    }
+
+    @Test
+    public void loadDoesNotWait() throws IOException {
+        final String html = newRenderer().capture(page("load.html", LATE_RENDERING));
+        assertFalse(html, html.contains("rendered late"));
+    }
+
+    private String page(final String name, final String body) throws IOException {
+        final File file = new File(directory, name);
+        Files.write(file.toPath(), ("<!DOCTYPE html><html><head><title>" + name + "</title></head><body>" + body + "</body></html>")
+                .getBytes(StandardCharsets.UTF_8));
+        return file.toURI().toString();
+    }
+
+    private ChromeWebRenderer newRenderer(final String... configuration) {
+        final Map<String, String> properties = TestBeans.configuration(configuration);
+        properties.put("rmannibucau.website.rendering.chrome.path", chrome);
+        properties.put("rmannibucau.website.rendering.chrome.arguments", "--no-sandbox"); // containers
+        final ChromeWebRenderer renderer = TestBeans.create(ChromeWebRenderer.class, singletonMap("metrics", TestBeans.metrics()), properties);
+        renderers.add(renderer);
+        return renderer;
+    }
+
+    private static String findChrome() {
+        final String path = System.getenv("PATH");
+        return path == null ? null : Stream.of(EXECUTABLES)
+                .flatMap(executable -> Stream.of(path.split(File.pathSeparator)).map(folder -> new File(folder, executable)))
+                .filter(File::canExecute)
+                .map(File::getAbsolutePath)
+                .findFirst()
+                .orElse(null);
+    }
+}
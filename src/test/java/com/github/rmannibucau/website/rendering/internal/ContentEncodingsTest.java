@@ -0,0 +1,46 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collection;
+
+import org.junit.Test;
+
+public class ContentEncodingsTest {
+    private final ContentEncodings encodings = new ContentEncodings();
+    private final Collection<String> all = asList("identity", "gzip", "br");
+
+    @Test
+    public void preferCompressed() {
+        assertEquals("br", encodings.negotiate("gzip, deflate, br", all));
+        assertEquals("gzip", encodings.negotiate("gzip, deflate", all));
+        assertEquals("gzip", encodings.negotiate("gzip;q=1, br;q=0.5", all));
+    }
+
+    @Test
+    public void identity() {
+        assertEquals("identity", encodings.negotiate(null, all));
+        assertEquals("identity", encodings.negotiate("deflate", all));
+        assertNull(encodings.negotiate("deflate, identity;q=0", all));
+        assertNull(encodings.negotiate("deflate", singletonList("gzip")));
+    }
+
+    @Test
+    public void wildcard() {
+        assertEquals("br", encodings.negotiate("*", all));
+        assertEquals("gzip", encodings.negotiate("*;q=0.5, gzip", all));
+        assertNull(encodings.negotiate("*;q=0", all));
+    }
+
+    @Test
+    public void hash() {
+        final String hash = ContentEncodings.hash("<html></html>");
+        assertEquals(32, hash.length());
+        assertEquals(hash, ContentEncodings.hash("<html></html>"));
+        assertNotEquals(hash, ContentEncodings.hash("<html> </html>"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DefaultHtmlCacheTest {
+    private final Collection<Object> beans = new ArrayList<>();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("default-html-cache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        beans.forEach(TestBeans::destroy);
+        try (final Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void nearCacheUsesTheNormalizedKeys() {
+        final DefaultHtmlCache cache = newFileCache();
+        cache.put("http://app/products?utm_source=mail&page=2", "<html>v1</html>");
+        assertEquals("<html>v1</html>", cache.get("http://app/products?page=2&utm_source=mail")); // now in the near cache
+        assertEquals("<html>v1</html>", cache.get("http://app/products?utm_source=ads&page=2"));
+
+        // a bulk invalidation removes the page with the key of the storage
+        final Collection<String> keys = cache.getKeysByPrefix("http://app/products");
+        assertEquals(singletonList("http://app/products?page=2"), new ArrayList<>(keys));
+        keys.forEach(cache::invalidate);
+        assertNull(cache.get("http://app/products?page=2&utm_source=mail"));
+        assertNull(cache.get("http://app/products?utm_source=ads&page=2"));
+
+        cache.put("http://app/products?page=2", "<html>v2</html>");
+        assertEquals("<html>v2</html>", cache.get("http://app/products?utm_source=mail&page=2"));
+    }
+
+    private DefaultHtmlCache newFileCache() {
+        final Map<String, Object> storage = new HashMap<>();
+        storage.put("contentEncodings", TestBeans.create(ContentEncodings.class, emptyMap()));
+        storage.put("pageTags", TestBeans.create(PageTags.class, emptyMap()));
+        final LocalFileSystemHtmlCache fileSystem = TestBeans.create(LocalFileSystemHtmlCache.class, storage, TestBeans.configuration(
+                "rmannibucau.website.rendering.cache.directory", directory.getAbsolutePath(),
+                "rmannibucau.website.rendering.cache.file.query.parameters", "page"));
+        beans.add(fileSystem);
+
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("fileSystem", fileSystem);
+        fields.put("metrics", TestBeans.metrics());
+        return TestBeans.create(DefaultHtmlCache.class, fields, TestBeans.configuration(
+                "rmannibucau.website.rendering.cache.mode", "file",
+                "rmannibucau.website.rendering.cache.near.size", Long.toString(1024 * 1024)));
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class DefaultPageInvalidatorTest {
+    @Test
+    public void glob() {
+        final Pattern pattern = DefaultPageInvalidator.toRegex("http://app/products/*.html?lang=??");
+        assertTrue(pattern.matcher("http://app/products/1.html?lang=en").matches());
+        assertTrue(pattern.matcher("http://app/products/shoes/2.html?lang=fr").matches());
+        assertFalse(pattern.matcher("http://app/products/1.html?lang=eng").matches());
+        assertFalse(pattern.matcher("http://app/products/1xhtml?lang=en").matches()); // . is not a wildcard
+    }
+
+    @Test
+    public void literalPrefix() {
+        assertEquals("http://app/products/", DefaultPageInvalidator.literalPrefix("http://app/products/*.html"));
+        assertEquals("http://app/", DefaultPageInvalidator.literalPrefix("http://app/?roducts"));
+        assertEquals("http://app/about", DefaultPageInvalidator.literalPrefix("http://app/about"));
+    }
+}
@@ -0,0 +1,242 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DevToolsConnectionTest {
+    private ServerSocket server;
+    private Socket browser;
+
+    @Before
+    public void start() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void stop() throws IOException {
+        if (browser != null) {
+            browser.close();
+        }
+        server.close();
+    }
+
+    @Test
+    public void command() throws Exception {
+        try (final DevToolsConnection connection = connect()) {
+            final CompletableFuture<JsonObject> result = connection.send(null, "Target.createBrowserContext", null);
+            final Frame request = readFrame();
+            assertTrue(request.masked);
+            assertEquals(0x1, request.opcode);
+            final JsonObject command = Json.createReader(new StringReader(request.text())).readObject();
+            assertEquals("Target.createBrowserContext", command.getString("method"));
+            assertFalse(command.containsKey("sessionId"));
+
+            writeFrame(0x1, true, ("{\"id\":" + command.getJsonNumber("id").longValue() + ",\"result\":{\"browserContextId\":\"ctx\"}}")
+                    .getBytes(StandardCharsets.UTF_8));
+            assertEquals("ctx", result.get(5, SECONDS).getString("browserContextId"));
+        }
+    }
+
+    @Test
+    public void error() throws Exception {
+        try (final DevToolsConnection connection = connect()) {
+            final CompletableFuture<JsonObject> result = connection.send("session", "Page.enable", null);
+            final JsonObject command = Json.createReader(new StringReader(readFrame().text())).readObject();
+            assertEquals("session", command.getString("sessionId"));
+            writeFrame(0x1, true, ("{\"id\":" + command.getJsonNumber("id").longValue() + ",\"error\":{\"message\":\"No target\"}}")
+                    .getBytes(StandardCharsets.UTF_8));
+            try {
+                result.get(5, SECONDS);
+                fail();
+            } catch (final ExecutionException ee) {
+                assertEquals("No target", ee.getCause().getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void lengths() throws Exception {
+        try (final DevToolsConnection connection = connect()) {
+            for (final int length : new int[]{10, 200, 70000}) { // 7 bits, 16 bits and 64 bits lengths
+                final StringBuilder value = new StringBuilder();
+                while (value.length() < length) {
+                    value.append('x');
+                }
+                final CompletableFuture<JsonObject> result = connection.send(null, "Runtime.evaluate",
+                        Json.createObjectBuilder().add("expression", value.toString()).build());
+                final JsonObject command = Json.createReader(new StringReader(readFrame().text())).readObject();
+                assertEquals(value.toString(), command.getJsonObject("params").getString("expression")); // client side lengths
+
+                final byte[] response = ("{\"id\":" + command.getJsonNumber("id").longValue() + ",\"result\":{\"value\":\"" + value + "\"}}")
+                        .getBytes(StandardCharsets.UTF_8);
+                writeFrame(0x1, true, response);
+                assertEquals(value.toString(), result.get(5, SECONDS).getString("value"));
+            }
+        }
+    }
+
+    @Test
+    public void fragments() throws Exception {
+        try (final DevToolsConnection connection = connect()) {
+            final CompletableFuture<JsonObject> event = connection.once("session", "Page.loadEventFired");
+            final byte[] message = "{\"method\":\"Page.loadEventFired\",\"sessionId\":\"session\",\"params\":{\"timestamp\":1}}"
+                    .getBytes(StandardCharsets.UTF_8);
+            final int half = message.length / 2;
+            writeFrame(0x1, false, Arrays.copyOfRange(message, 0, half));
+            writeFrame(0x9, true, "ping".getBytes(StandardCharsets.UTF_8)); // control frames can be interleaved
+            writeFrame(0x0, true, Arrays.copyOfRange(message, half, message.length));
+            assertEquals(1, event.get(5, SECONDS).getInt("timestamp"));
+
+            final Frame pong = readFrame();
+            assertEquals(0xA, pong.opcode);
+            assertTrue(pong.masked);
+            assertArrayEquals("ping".getBytes(StandardCharsets.UTF_8), pong.payload);
+        }
+    }
+
+    @Test
+    public void browserClosed() throws Exception {
+        try (final DevToolsConnection connection = connect()) {
+            final CompletableFuture<JsonObject> result = connection.send(null, "Browser.getVersion", null);
+            readFrame();
+            browser.close();
+            try {
+                result.get(5, SECONDS);
+                fail();
+            } catch (final ExecutionException ee) {
+                assertTrue(IllegalStateException.class.isInstance(ee.getCause()));
+            }
+            assertFalse(connection.isOpen());
+        }
+    }
+
+    @Test
+    public void handshakeTimeout() throws IOException {
+        final long start = System.nanoTime();
+        try (final DevToolsConnection ignored = new DevToolsConnection(URI.create("ws://localhost:" + server.getLocalPort() + "/devtools/browser/test"), 500)) {
+            fail(); // the connection is accepted by the backlog but the handshake is never answered
+        } catch (final SocketTimeoutException ste) {
+            assertTrue(SECONDS.toNanos(5) > System.nanoTime() - start);
+        }
+    }
+
+    private DevToolsConnection connect() throws Exception {
+        // the client sends no frame before the handshake response so the buffered handshake reader can't consume one
+        final CompletableFuture<Socket> accepted = CompletableFuture.supplyAsync(() -> {
+            try {
+                final Socket socket = server.accept();
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String key = null;
+                String line;
+                while (!(line = reader.readLine()).isEmpty()) {
+                    if (line.toLowerCase(ROOT).startsWith("sec-websocket-key:")) {
+                        key = line.substring(line.indexOf(':') + 1).trim();
+                    }
+                }
+                final String accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                        .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.US_ASCII)));
+                socket.getOutputStream().write(("HTTP/1.1 101 Switching Protocols\r\n" +
+                        "Upgrade: websocket\r\n" +
+                        "Connection: Upgrade\r\n" +
+                        "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                return socket;
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        final DevToolsConnection connection = new DevToolsConnection(
+                URI.create("ws://localhost:" + server.getLocalPort() + "/devtools/browser/test"), 5000);
+        browser = accepted.get(5, SECONDS);
+        browser.setSoTimeout(5000);
+        return connection;
+    }
+
+    private Frame readFrame() throws IOException {
+        final DataInputStream input = new DataInputStream(browser.getInputStream());
+        final int header = input.readUnsignedByte();
+        final int lengthHeader = input.readUnsignedByte();
+        long length = lengthHeader & 0x7F;
+        if (length == 126) {
+            length = input.readUnsignedShort();
+        } else if (length == 127) {
+            length = input.readLong();
+        }
+        final boolean masked = (lengthHeader & 0x80) != 0;
+        final byte[] mask = new byte[4];
+        if (masked) {
+            input.readFully(mask);
+        }
+        final byte[] payload = new byte[(int) length];
+        input.readFully(payload);
+        for (int i = 0; masked && i < payload.length; i++) {
+            payload[i] ^= mask[i % 4];
+        }
+        return new Frame(header & 0x0F, masked, payload);
+    }
+
+    // server frames are never masked
+    private void writeFrame(final int opcode, final boolean fin, final byte[] payload) throws IOException {
+        final OutputStream output = browser.getOutputStream();
+        output.write((fin ? 0x80 : 0) | opcode);
+        if (payload.length < 126) {
+            output.write(payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            output.write(126);
+            output.write(payload.length >>> 8);
+            output.write(payload.length);
+        } else {
+            output.write(127);
+            for (int i = 7; i >= 0; i--) {
+                output.write((int) ((long) payload.length >>> (8 * i)));
+            }
+        }
+        output.write(payload);
+        output.flush();
+    }
+
+    private static final class Frame {
+        private final int opcode;
+        private final boolean masked;
+        private final byte[] payload;
+
+        private Frame(final int opcode, final boolean masked, final byte[] payload) {
+            this.opcode = opcode;
+            this.masked = masked;
+            this.payload = payload;
+        }
+
+        private String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class HitAdmissionTest {
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final HitAdmission admission = new HitAdmission(3, 100, 1024, clock::get);
+
+    @Test
+    public void admitAfterHits() {
+        assertFalse(admission.admit("/a"));
+        assertFalse(admission.admit("/a"));
+        assertFalse(admission.admit("/b"));
+        assertTrue(admission.admit("/a"));
+    }
+
+    @Test
+    public void slidingWindow() {
+        admission.admit("/a");
+        admission.admit("/a");
+        clock.addAndGet(110); // most of the previous window is still in the sliding window
+        assertFalse(admission.admit("/a"));
+        assertTrue(admission.admit("/a"));
+
+        admission.admit("/b");
+        admission.admit("/b");
+        clock.addAndGet(180); // previous window almost out of the sliding window
+        assertFalse(admission.admit("/b"));
+    }
+
+    @Test
+    public void expire() {
+        admission.admit("/a");
+        admission.admit("/a");
+        clock.addAndGet(250);
+        assertFalse(admission.admit("/a"));
+    }
+
+    @Test
+    public void width() {
+        final HitAdmission saturated = new HitAdmission(2, 100, 16, clock::get);
+        final HitAdmission sized = new HitAdmission(2, 100, 1 << 17, clock::get);
+        for (int i = 0; i < 50000; i++) {
+            saturated.admit("/page/" + i);
+            sized.admit("/page/" + i);
+        }
+        // a url requested once is only admitted when its counters collide with other urls
+        assertTrue(saturated.admit("/new"));
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sized.admit("/new/" + i)) {
+                admitted++;
+            }
+        }
+        assertTrue(String.valueOf(admitted), admitted < 10);
+    }
+}
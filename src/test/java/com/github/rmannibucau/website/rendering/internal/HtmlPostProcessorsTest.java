@@ -0,0 +1,67 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class HtmlPostProcessorsTest {
+    @Test
+    public void stripScripts() {
+        assertEquals("<html><head><script type=\"application/ld+json\">{}</script></head><body><p>x</p>",
+                HtmlPostProcessors.stripScripts("<html><head><script src=\"app.js\"></script>" +
+                        "<script type=\"application/ld+json\">{}</script></head>" +
+                        "<body><SCRIPT>var state = {\"a\": \"</p>\"};</SCRIPT><p>x</p><script>unclosed"));
+    }
+
+    @Test
+    public void stripScriptsOnlyForBots() {
+        final HtmlPostProcessors processors = newProcessors("strip-scripts", "bots");
+        assertEquals("<p>x</p>", processors.process("http://app/", "<script src=\"app.js\"></script><p>x</p>"));
+    }
+
+    @Test
+    public void stripScriptsServedToEveryone() {
+        try {
+            newProcessors("strip-scripts", "all");
+            fail();
+        } catch (final IllegalArgumentException iae) {
+            assertTrue(iae.getMessage(), iae.getMessage().contains("bots.routing=bots"));
+        }
+    }
+
+    @Test
+    public void removeComments() {
+        assertEquals("<p>a</p><!--[if IE]>ie<![endif]--><script>// <!-- kept --></script>",
+                HtmlPostProcessors.minify("<p>a</p><!-- comment --><!--[if IE]>ie<![endif]--><script>// <!-- kept --></script>", true, false));
+    }
+
+    @Test
+    public void collapseWhitespace() {
+        assertEquals("<div>\n<p>a b</p>\n<pre>  keep\n   it</pre> <prefix> x</prefix></div>",
+                HtmlPostProcessors.minify("<div>\n  <p>a  \t b</p>\n\n<pre>  keep\n   it</pre>   <prefix>   x</prefix></div>", false, true));
+    }
+
+    @Test
+    public void collapseWhitespaceKeepsAttributeValues() {
+        assertEquals("<p title=\"a  b\n c\" data-x='  y  ' class=\"k\">t u</p>",
+                HtmlPostProcessors.minify("<p   title=\"a  b\n c\"\n   data-x='  y  '  class=\"k\">t   u</p>", false, true));
+        assertEquals("<a title=\"x > y  z\">l </a>", // a quoted > doesn't end the tag
+                HtmlPostProcessors.minify("<a title=\"x > y  z\">l  </a>", false, true));
+        assertEquals("a < b", HtmlPostProcessors.minify("a   <   b", false, true)); // not a tag
+    }
+
+    @Test
+    public void collapseWhitespaceKeepsPreformattedElements() {
+        assertEquals("<pre class=\"code\">a\n    b   c</pre>\n<textarea name=\"t\">  x\n\n  y</textarea> <PRE>  z  </PRE>",
+                HtmlPostProcessors.minify("<pre class=\"code\">a\n    b   c</pre>\n\n<textarea name=\"t\">  x\n\n  y</textarea>  <PRE>  z  </PRE>", false, true));
+    }
+
+    private HtmlPostProcessors newProcessors(final String builtIns, final String botsRouting) {
+        return TestBeans.create(HtmlPostProcessors.class, emptyMap(), TestBeans.configuration(
+                "rmannibucau.website.rendering.postprocessors", builtIns,
+                "rmannibucau.website.rendering.web.bots.routing", botsRouting));
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.cache.Cache;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class JCacheHtmlCacheTest {
+    private JCacheHtmlCache cache;
+
+    @After
+    public void destroy() {
+        if (cache != null) {
+            TestBeans.destroy(cache);
+        }
+    }
+
+    @Test
+    public void keysByPrefixAndTag() {
+        cache = newCache();
+        cache.put("http://app/products/1", page("product,category-1"));
+        cache.putIfAbsent("http://app/products/2", page("product,category-2"));
+        cache.put("http://app/about", page(null));
+        assertEquals(asList("http://app/products/1", "http://app/products/2"), sorted(cache.getKeysByPrefix("http://app/products/")));
+        assertEquals(asList("http://app/products/1", "http://app/products/2"), sorted(cache.getKeysByTag("product")));
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByTag("category-2")));
+        assertTrue(cache.getKeysByTag("missing").isEmpty());
+
+        cache.put("http://app/products/2", page("category-3"));
+        assertEquals(singletonList("http://app/products/1"), sorted(cache.getKeysByTag("product")));
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByTag("category-3")));
+        cache.invalidate("http://app/products/1");
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByPrefix("http://app/products/")));
+        assertTrue(cache.getKeysByTag("category-1").isEmpty());
+    }
+
+    @Test
+    public void expiredPagesLeaveTheTagIndex() {
+        cache = newCache();
+        cache.put("http://app/products/1", page("product"));
+        cache.put("http://app/products/2", page("product"));
+        final Cache<String, String> index = cache.getCacheManager().getCache(cache.getCacheName() + ".tags.index", String.class, String.class);
+        assertEquals("http://app/products/1\nhttp://app/products/2", index.get("product"));
+
+        // the page expired, its tags are still indexed
+        cache.getCacheManager().getCache(cache.getCacheName() + ".timestamps", String.class, Long.class).remove("http://app/products/1");
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByTag("product")));
+        assertEquals("http://app/products/2", index.get("product"));
+    }
+
+    private static String page(final String tags) {
+        return "<html><head>" + (tags == null ? "" : "<meta name=\"website-rendering-tags\" content=\"" + tags + "\">")
+                + "</head><body></body></html>";
+    }
+
+    private static List<String> sorted(final Collection<String> keys) {
+        return keys.stream().sorted().collect(toList());
+    }
+
+    private JCacheHtmlCache newCache() {
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("contentEncodings", TestBeans.create(ContentEncodings.class, emptyMap()));
+        fields.put("pageTags", TestBeans.create(PageTags.class, emptyMap()));
+        return TestBeans.create(JCacheHtmlCache.class, fields, TestBeans.configuration(
+                "rmannibucau.website.rendering.cache.name", JCacheHtmlCacheTest.class.getName(),
+                "rmannibucau.website.rendering.cache.jmx", "false"));
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.cache.Cache;
+import javax.cache.Caching;
+import javax.cache.configuration.MutableConfiguration;
+import javax.cache.spi.CachingProvider;
+
+import org.junit.Test;
+
+public class JCacheRenderingLeaseTest {
+    @Test
+    public void singleOwner() {
+        final CachingProvider provider = Caching.getCachingProvider();
+        try {
+            // both nodes share the same (distributed in practice) cache
+            final Cache<String, String> leases = provider.getCacheManager().createCache("JCacheRenderingLeaseTest",
+                    new MutableConfiguration<String, String>().setTypes(String.class, String.class).setStoreByValue(false));
+            final JCacheRenderingLease node1 = new JCacheRenderingLease(leases, "node1");
+            final JCacheRenderingLease node2 = new JCacheRenderingLease(leases, "node2");
+
+            assertTrue(node1.tryAcquire("http://localhost/a"));
+            assertFalse(node2.tryAcquire("http://localhost/a"));
+            assertTrue(node2.tryAcquire("http://localhost/b"));
+
+            node2.release("http://localhost/a"); // not the owner, ignored
+            assertFalse(node2.tryAcquire("http://localhost/a"));
+
+            node1.release("http://localhost/a");
+            assertTrue(node2.tryAcquire("http://localhost/a"));
+            assertFalse(node1.tryAcquire("http://localhost/a"));
+        } finally {
+            provider.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class KeyIndexTest {
+    private final KeyIndex index = new KeyIndex();
+
+    @Test
+    public void prefix() {
+        index.put("http://app/products/1", emptyList());
+        index.put("http://app/products/2", emptyList());
+        index.put("http://app/productsheet", emptyList());
+        index.put("http://app/about", emptyList());
+        assertEquals(asList("http://app/products/1", "http://app/products/2"), index.byPrefix("http://app/products/"));
+        assertEquals(4, index.byPrefix("http://app/").size());
+
+        index.remove("http://app/products/1");
+        assertEquals(singletonList("http://app/products/2"), index.byPrefix("http://app/products/"));
+    }
+
+    @Test
+    public void tags() {
+        index.put("http://app/products/1", asList("product", "category-1"));
+        index.put("http://app/products/2", asList("product", "category-2"));
+        assertEquals(new HashSet<>(asList("http://app/products/1", "http://app/products/2")), new HashSet<>(index.byTag("product")));
+        assertEquals(singletonList("http://app/products/1"), index.byTag("category-1"));
+
+        index.put("http://app/products/1", singletonList("product")); // re-rendered without its category
+        assertTrue(index.byTag("category-1").isEmpty());
+
+        index.remove("http://app/products/2");
+        assertEquals(singletonList("http://app/products/1"), index.byTag("product"));
+        assertTrue(index.byTag("category-2").isEmpty());
+    }
+}
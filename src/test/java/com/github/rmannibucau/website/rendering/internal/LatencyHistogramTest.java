@@ -0,0 +1,38 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void buckets() {
+        for (long value = 0; value < 1 << 20; value += 7) {
+            final int index = LatencyHistogram.index(value);
+            assertTrue(value + " <= " + LatencyHistogram.upperBound(index), value <= LatencyHistogram.upperBound(index));
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+        final int last = LatencyHistogram.index(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(.99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean(), 0.1);
+        assertWithinPrecision(500_000, histogram.getPercentile(.5));
+        assertWithinPrecision(990_000, histogram.getPercentile(.99));
+        assertEquals(1_000_000, histogram.getPercentile(1));
+    }
+
+    private static void assertWithinPrecision(final long expected, final long actual) {
+        assertTrue(expected + " ~ " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
@@ -0,0 +1,386 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalFileSystemHtmlCacheTest {
+    private final Collection<LocalFileSystemHtmlCache> caches = new ArrayList<>();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("file-html-cache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        caches.forEach(TestBeans::destroy);
+        try (final Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void putIfAbsent() {
+        final LocalFileSystemHtmlCache cache = newCache();
+        assertTrue(cache.putIfAbsent("http://app/a", "<html>a</html>"));
+        assertFalse(cache.putIfAbsent("http://app/a", "<html>other</html>"));
+        assertEquals("<html>a</html>", cache.get("http://app/a"));
+        assertEquals(1, cache.getEntries());
+    }
+
+    @Test
+    public void putReplaces() {
+        final LocalFileSystemHtmlCache cache = newCache();
+        assertTrue(cache.put("http://app/a", "<html>a</html>"));
+        assertTrue(cache.put("http://app/a", "<html>a2</html>"));
+        assertEquals("<html>a2</html>", cache.get("http://app/a"));
+        assertEquals(ContentEncodings.hash("<html>a2</html>"), cache.getEntry("http://app/a").getHash());
+        assertEquals(1, cache.getEntries());
+        assertEquals("<html>a2</html>".length(), cache.getBytes());
+    }
+
+    @Test
+    public void staleHash() throws NoSuchAlgorithmException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        final String id = sha256("http://app/a");
+        final File page = new File(directory, id.substring(0, 2) + '/' + id.substring(2, 4) + '/' + id + ".html");
+        final File hash = new File(page.getParentFile(), page.getName() + ".hash");
+        assertTrue(hash.lastModified() >= page.lastModified());
+
+        // the page was replaced but its hash is not written yet
+        assertTrue(hash.setLastModified(page.lastModified() - 10000));
+        assertNull(cache.getEntry("http://app/a").getHash());
+    }
+
+    @Test
+    public void invalidate() {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        assertTrue(cache.invalidate("http://app/a"));
+        assertFalse(cache.invalidate("http://app/a"));
+        assertNull(cache.get("http://app/a"));
+        assertEquals(0, cache.getEntries());
+        assertTrue(files().stream().allMatch(it -> it.getName().equals("layout"))); // no sidecar left
+    }
+
+    @Test
+    public void noPartialFile() throws InterruptedException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        final String small = page('a', 10);
+        final String big = page('b', 1 << 20);
+        cache.put("http://app/a", small);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> unexpected = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            while (running.get()) {
+                final String html = cache.get("http://app/a");
+                if (!small.equals(html) && !big.equals(html)) {
+                    unexpected.set(html == null ? "null" : html.length() + " chars");
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                cache.put("http://app/a", i % 2 == 0 ? big : small);
+            }
+        } finally {
+            running.set(false);
+            reader.join();
+        }
+        assertNull(unexpected.get());
+        assertEquals(0, files().stream().filter(it -> it.getName().endsWith(".tmp")).count());
+    }
+
+    @Test
+    public void normalization() {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.query.parameters", "page, sort");
+        cache.put("http://app/products?sort=name&page=2&utm_source=mail#top", "<html>products</html>");
+        assertEquals("<html>products</html>", cache.get("http://app/products?page=2&sort=name"));
+        assertEquals("<html>products</html>", cache.get("http://app/products?utm_source=ads&page=2&sort=name"));
+        assertNull(cache.get("http://app/products?page=3&sort=name"));
+        assertEquals(singletonList("http://app/products?page=2&sort=name"), cache.getKeysByPrefix("http://app/products"));
+
+        cache.put("http://app/about?utm_source=mail", "<html>about</html>");
+        assertEquals("<html>about</html>", cache.get("http://app/about"));
+        assertEquals(singletonList("http://app/about"), cache.getKeysByPrefix("http://app/about"));
+    }
+
+    @Test
+    public void keysByPrefixAndTag() {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.query.parameters", "page");
+        cache.put("http://app/products/1?utm_source=mail", taggedPage("product,category-1"));
+        cache.put("http://app/products/2?page=2", taggedPage("product,category-2"));
+        cache.put("http://app/about", taggedPage(null));
+        assertEquals(Arrays.asList("http://app/products/1", "http://app/products/2?page=2"), sorted(cache.getKeysByPrefix("http://app/products/")));
+        assertEquals(Arrays.asList("http://app/products/1", "http://app/products/2?page=2"), sorted(cache.getKeysByTag("product")));
+        assertEquals(singletonList("http://app/products/1"), sorted(cache.getKeysByTag("category-1")));
+        assertTrue(cache.getKeysByTag("missing").isEmpty());
+
+        cache.put("http://app/products/1", taggedPage("category-3")); // the index follows the new tags
+        assertTrue(cache.getKeysByTag("category-1").isEmpty());
+        assertEquals(singletonList("http://app/products/1"), sorted(cache.getKeysByTag("category-3")));
+        cache.invalidate("http://app/products/2?page=2&utm_source=ads");
+        assertEquals(singletonList("http://app/products/1"), sorted(cache.getKeysByPrefix("http://app/products/")));
+
+        // the keys are loaded from the meta files
+        TestBeans.destroy(cache);
+        final LocalFileSystemHtmlCache restarted = newCache("rmannibucau.website.rendering.cache.file.query.parameters", "page");
+        assertEquals(Arrays.asList("http://app/about", "http://app/products/1"), sorted(restarted.getKeysByPrefix("http://app/")));
+        assertEquals(singletonList("http://app/products/1"), sorted(restarted.getKeysByTag("category-3")));
+    }
+
+    @Test
+    public void pageWithoutMeta() {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/old", taggedPage("t"));
+        cache.put("http://app/new", taggedPage("t"));
+        TestBeans.destroy(cache);
+        files().stream() // stored by a version without the meta files
+                .filter(it -> it.getName().endsWith(".meta"))
+                .filter(it -> new String(read(it), StandardCharsets.UTF_8).startsWith("http://app/old"))
+                .forEach(File::delete);
+
+        final LocalFileSystemHtmlCache restarted = newCache();
+        assertEquals(taggedPage("t"), restarted.get("http://app/old")); // still served but not indexed
+        assertEquals(singletonList("http://app/new"), sorted(restarted.getKeysByTag("t")));
+        restarted.put("http://app/old", taggedPage("t")); // stored again, indexed again
+        assertEquals(Arrays.asList("http://app/new", "http://app/old"), sorted(restarted.getKeysByTag("t")));
+    }
+
+    private static String taggedPage(final String tags) {
+        return "<html><head>" + (tags == null ? "" : "<meta name=\"website-rendering-tags\" content=\"" + tags + "\">")
+                + "</head><body>" + tags + "</body></html>";
+    }
+
+    private static List<String> sorted(final Collection<String> keys) {
+        return keys.stream().sorted().collect(toList());
+    }
+
+    private static byte[] read(final File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void layout() throws NoSuchAlgorithmException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        final String id = sha256("http://app/a");
+        final File page = new File(directory, id.substring(0, 2) + '/' + id.substring(2, 4) + '/' + id + ".html");
+        assertTrue(page.isFile());
+        assertTrue(new File(page.getParentFile(), page.getName() + ".hash").isFile());
+        assertTrue(new File(page.getParentFile(), page.getName() + ".meta").isFile());
+    }
+
+    @Test
+    public void fanoutChange() throws NoSuchAlgorithmException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+
+        final LocalFileSystemHtmlCache restarted = newCache("rmannibucau.website.rendering.cache.file.fanout", "1");
+        assertEquals("<html>a</html>", restarted.get("http://app/a"));
+        assertEquals(1, restarted.getEntries());
+        assertEquals(singletonList("http://app/a"), restarted.getKeysByPrefix("http://app/"));
+
+        final String id = sha256("http://app/a");
+        assertTrue(new File(directory, id.substring(0, 2) + '/' + id + ".html").isFile());
+        assertFalse(new File(directory, id.substring(0, 2) + '/' + id.substring(2, 4)).exists()); // old layout cleaned
+        assertTrue(restarted.invalidate("http://app/a"));
+        assertTrue(files().stream().noneMatch(it -> it.getName().startsWith(id)));
+    }
+
+    private String page(final char content, final int length) {
+        final StringBuilder html = new StringBuilder("<html><body>");
+        while (html.length() < length) {
+            html.append(content);
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    @Test
+    public void maxBytes() throws InterruptedException {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.maxBytes", "1000");
+        final String html = page('a', 86); // 100 bytes
+        for (int i = 0; i < 11; i++) {
+            cache.put("http://app/" + i, html);
+        }
+        awaitEvictions(cache);
+        assertTrue(cache.getBytes() <= 900);
+        assertEquals(cache.getBytes(), cache.getEntries() * 100);
+        assertEquals(100 * cache.getEvictions(), cache.getReclaimedBytes());
+        assertEquals(11, cache.getEntries() + cache.getEvictions());
+    }
+
+    @Test
+    public void maxEntries() throws InterruptedException {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.maxEntries", "10");
+        for (int i = 0; i < 11; i++) {
+            cache.put("http://app/" + i, "<html>" + i + "</html>");
+        }
+        awaitEvictions(cache);
+        assertEquals(9, cache.getEntries());
+        assertEquals(2, cache.getEvictions());
+        assertEquals(9, files().stream().filter(it -> it.getName().endsWith(".html")).count());
+    }
+
+    @Test
+    public void maxAge() throws InterruptedException {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.maxAge", "200");
+        cache.put("http://app/a", "<html>a</html>");
+        assertEquals("<html>a</html>", cache.get("http://app/a"));
+        Thread.sleep(300);
+        assertNull(cache.get("http://app/a")); // expired even before the evictor runs
+        awaitEvictions(cache);
+        assertEquals(0, cache.getEntries());
+        assertTrue(files().stream().noneMatch(it -> it.getName().endsWith(".html")));
+    }
+
+    @Test
+    public void putIfAbsentAfterMaxAge() throws InterruptedException {
+        final LocalFileSystemHtmlCache cache = newCache("rmannibucau.website.rendering.cache.file.maxAge", "200");
+        cache.put("http://app/a", "<html>a</html>");
+        cache.put("http://app/b", "<html>b</html>");
+        assertFalse(cache.putIfAbsent("http://app/a", "<html>a2</html>"));
+        Thread.sleep(300);
+        assertTrue(cache.putIfAbsent("http://app/a", "<html>a2</html>")); // not read since it expired
+        assertEquals("<html>a2</html>", cache.get("http://app/a"));
+        assertNull(cache.get("http://app/b"));
+        assertTrue(cache.putIfAbsent("http://app/b", "<html>b2</html>")); // the render following the miss
+        assertEquals("<html>b2</html>", cache.get("http://app/b"));
+        assertEquals(2, cache.getEntries());
+    }
+
+    @Test
+    public void indexRoundTrip() {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        cache.put("http://app/b", "<html>bb</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+        final File index = new File(directory, "index");
+        assertTrue(index.isFile());
+
+        final LocalFileSystemHtmlCache restarted = newCache();
+        assertFalse(index.exists()); // consumed, a crash must not reuse an outdated index
+        assertEquals(2, restarted.getEntries());
+        assertEquals("<html>a</html><html>bb</html>".length(), restarted.getBytes());
+        assertEquals("<html>bb</html>", restarted.get("http://app/b"));
+    }
+
+    @Test
+    public void corruptedIndex() throws IOException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        cache.put("http://app/b", "<html>bb</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+        final File index = new File(directory, "index");
+        final byte[] content = Files.readAllBytes(index.toPath());
+        Files.write(index.toPath(), Arrays.copyOf(content, content.length - 10)); // truncated
+
+        final LocalFileSystemHtmlCache restarted = newCache();
+        assertEquals(2, restarted.getEntries());
+        assertEquals("<html>a</html><html>bb</html>".length(), restarted.getBytes());
+    }
+
+    @Test
+    public void indexFanoutMismatch() throws IOException {
+        final LocalFileSystemHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+        final File index = new File(directory, "index");
+        try (final DataOutputStream out = new DataOutputStream(Files.newOutputStream(index.toPath()))) {
+            out.writeInt(0x57524931);
+            out.writeInt(3); // another fanout
+            out.writeInt(1);
+            out.write(new byte[32]);
+            out.writeLong(1000);
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+
+        final LocalFileSystemHtmlCache restarted = newCache();
+        assertEquals(1, restarted.getEntries());
+        assertEquals("<html>a</html>".length(), restarted.getBytes());
+        assertEquals("<html>a</html>", restarted.get("http://app/a"));
+    }
+
+    private void awaitEvictions(final LocalFileSystemHtmlCache cache) throws InterruptedException {
+        final long end = System.currentTimeMillis() + 10000;
+        long evictions = -1;
+        while (System.currentTimeMillis() < end) { // wait for the evictions to settle
+            final long current = cache.getEvictions();
+            if (current > 0 && current == evictions) {
+                return;
+            }
+            evictions = current;
+            Thread.sleep(200);
+        }
+        throw new AssertionError("No eviction");
+    }
+
+    private static String sha256(final String value) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private List<File> files() {
+        try (final Stream<Path> files = Files.walk(directory.toPath())) {
+            return files.map(Path::toFile).filter(File::isFile).collect(toList());
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private LocalFileSystemHtmlCache newCache(final String... configuration) {
+        final Map<String, String> properties = TestBeans.configuration(configuration);
+        properties.put("rmannibucau.website.rendering.cache.directory", directory.getAbsolutePath());
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("contentEncodings", TestBeans.create(ContentEncodings.class, emptyMap()));
+        fields.put("pageTags", TestBeans.create(PageTags.class, emptyMap()));
+        final LocalFileSystemHtmlCache cache = TestBeans.create(LocalFileSystemHtmlCache.class, fields, properties);
+        caches.add(cache);
+        return cache;
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.github.rmannibucau.website.rendering.spi.HtmlCache;
+
+import org.junit.Test;
+
+public class NearCacheTest {
+    @Test
+    public void hitMiss() {
+        final NearCache cache = new NearCache(1024 * 1024, false, 0);
+        assertNull(cache.get("a"));
+        cache.put("a", new HtmlCache.Entry("<html />", 1), cache.version("a"));
+        assertEquals("<html />", cache.get("a").getHtml());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void outdatedLoadIsIgnored() {
+        final NearCache cache = new NearCache(1024 * 1024, false, 0);
+        final long version = cache.version("a");
+        cache.invalidate("a"); // concurrent invalidation while loading
+        cache.put("a", new HtmlCache.Entry("<html />", 1), version);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void unrelatedInvalidationKeepsTheLoad() {
+        final NearCache cache = new NearCache(64 * 1024 * 1024, false, 0); // 16 segments
+        final long version = cache.version("a");
+        cache.invalidate(findKeyInOtherSegment("a"));
+        cache.put("a", new HtmlCache.Entry("<html />", 1), version);
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void smallSizeUsesASingleSegment() {
+        final NearCache cache = new NearCache(1024 * 1024, false, 0);
+        final String page = new String(new char[300 * 1024]); // 600KB in heap, more than 1/16 of the size
+        cache.put("a", new HtmlCache.Entry(page, 1), cache.version("a"));
+        assertNotNull(cache.get("a"));
+
+        final String tooBig = new String(new char[600 * 1024]);
+        cache.put("b", new HtmlCache.Entry(tooBig, 1), cache.version("b"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void lruEviction() {
+        final NearCache cache = new NearCache(400, false, 0); // a single page fits
+        final String page = new String(new char[100]);
+        cache.put("a", new HtmlCache.Entry(page, 1), cache.version("a"));
+        assertNotNull(cache.get("a"));
+        cache.put("b", new HtmlCache.Entry(page, 1), cache.version("b"));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void tinyLfuKeepsPopularPages() {
+        final NearCache cache = new NearCache(400, true, 0);
+        final String page = new String(new char[100]);
+        cache.put("a", new HtmlCache.Entry(page, 1), cache.version("a"));
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.get("a"));
+        }
+        cache.put("b", new HtmlCache.Entry(page, 1), cache.version("b"));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void tinyLfuRejectsBeforeEvicting() {
+        final NearCache cache = new NearCache(700, true, 0); // two pages fit
+        final String page = new String(new char[100]);
+        cache.put("cold", new HtmlCache.Entry(page, 1), cache.version("cold"));
+        cache.put("popular", new HtmlCache.Entry(page, 1), cache.version("popular"));
+        for (int i = 0; i < 10; i++) {
+            cache.get("popular");
+        }
+        for (int i = 0; i < 3; i++) {
+            cache.get("candidate");
+        }
+
+        // needs both slots: the cold page could be evicted but not the popular one so nothing changes
+        cache.put("candidate", new HtmlCache.Entry(new String(new char[200]), 1), cache.version("candidate"));
+        assertNull(cache.get("candidate"));
+        assertNotNull(cache.get("cold"));
+        assertNotNull(cache.get("popular"));
+        assertEquals(0, cache.getEvictions());
+    }
+
+    private String findKeyInOtherSegment(final String key) {
+        final int segment = segment(key);
+        for (int i = 0; ; i++) {
+            final String candidate = "key" + i;
+            if (segment(candidate) != segment) {
+                return candidate;
+            }
+        }
+    }
+
+    private int segment(final String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & 15;
+    }
+}
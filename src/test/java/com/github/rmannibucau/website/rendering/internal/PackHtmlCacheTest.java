@@ -0,0 +1,241 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackHtmlCacheTest {
+    private final Collection<PackHtmlCache> caches = new ArrayList<>();
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("pack-html-cache").toFile();
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        caches.forEach(TestBeans::destroy);
+        try (final Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        final PackHtmlCache cache = newCache();
+        assertNull(cache.get("http://app/a"));
+        assertTrue(cache.putIfAbsent("http://app/a", "<html>a</html>"));
+        assertFalse(cache.putIfAbsent("http://app/a", "<html>other</html>"));
+        assertEquals("<html>a</html>", cache.get("http://app/a"));
+        assertEquals(ContentEncodings.hash("<html>a</html>"), cache.getEntry("http://app/a").getHash());
+
+        assertTrue(cache.put("http://app/a", "<html>a2</html>"));
+        assertEquals("<html>a2</html>", cache.get("http://app/a"));
+        assertEquals(1, cache.getEntries());
+
+        assertTrue(cache.invalidate("http://app/a"));
+        assertFalse(cache.invalidate("http://app/a"));
+        assertNull(cache.get("http://app/a"));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    public void restart() {
+        final PackHtmlCache cache = newCache();
+        final String a = page(null, 400); // the invalidated page stays under the compaction threshold
+        cache.put("http://app/a", a);
+        cache.put("http://app/b", "<html>b</html>");
+        cache.invalidate("http://app/b");
+        assertEquals(1, cache.getSegments());
+
+        // no destroy: simulates a crash
+        final PackHtmlCache restarted = newCache();
+        assertEquals(a, restarted.get("http://app/a"));
+        assertNull(restarted.get("http://app/b"));
+        assertEquals(1, restarted.getSegments()); // the last segment is reopened, not a new one
+
+        restarted.put("http://app/c", "<html>c</html>");
+        TestBeans.destroy(restarted);
+        caches.remove(restarted);
+
+        final PackHtmlCache reopened = newCache();
+        assertEquals(1, reopened.getSegments());
+        assertEquals(a, reopened.get("http://app/a"));
+        assertEquals("<html>c</html>", reopened.get("http://app/c"));
+        assertNull(reopened.get("http://app/b"));
+    }
+
+    @Test
+    public void corruptedTail() throws IOException {
+        final PackHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        cache.put("http://app/b", "<html>b</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+
+        final File segment = singleSegment();
+        final long b = indexOf(segment, "<html>b</html>");
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(b);
+            file.write('x');
+        }
+
+        final PackHtmlCache restarted = newCache();
+        assertEquals("<html>a</html>", restarted.get("http://app/a"));
+        assertNull(restarted.get("http://app/b"));
+
+        restarted.put("http://app/c", "<html>c</html>");
+        final PackHtmlCache reopened = newCache();
+        assertEquals("<html>a</html>", reopened.get("http://app/a"));
+        assertEquals("<html>c</html>", reopened.get("http://app/c"));
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        final PackHtmlCache cache = newCache();
+        cache.put("http://app/a", "<html>a</html>");
+        cache.put("http://app/b", "<html>b</html>");
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+
+        final File segment = singleSegment();
+        final long b = indexOf(segment, "<html>b</html>");
+        try (final RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(b + 5);
+        }
+
+        final PackHtmlCache restarted = newCache();
+        assertEquals("<html>a</html>", restarted.get("http://app/a"));
+        assertNull(restarted.get("http://app/b"));
+
+        restarted.put("http://app/b", "<html>b2</html>"); // does not fit the truncated segment anymore
+        final PackHtmlCache reopened = newCache();
+        assertEquals("<html>a</html>", reopened.get("http://app/a"));
+        assertEquals("<html>b2</html>", reopened.get("http://app/b"));
+    }
+
+    @Test
+    public void compaction() throws InterruptedException {
+        final PackHtmlCache cache = newCache();
+        final String z = page("t1", 300);
+        cache.put("http://app/y", page(null, 500)); // segment 1
+        cache.put("http://app/x", page(null, 10)); // segment 1
+        cache.put("http://app/z", page("t1", 299)); // segment 2
+        cache.invalidate("http://app/x"); // tombstone in segment 2, x is still in segment 1
+        cache.put("http://app/z", z); // first z is dead, segment 2 is mostly dead
+        cache.put("http://app/w", page(null, 300)); // segment 3, segment 2 is sealed and compacted
+        assertEquals(3, cache.getSegments() + cache.getCompactions());
+
+        final long end = System.currentTimeMillis() + 10000;
+        while (cache.getCompactions() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, cache.getCompactions());
+        assertEquals(2, cache.getSegments());
+        assertNull(cache.get("http://app/x"));
+        assertEquals(z, cache.get("http://app/z"));
+        assertEquals(ContentEncodings.hash(z), cache.getEntry("http://app/z").getHash());
+        assertEquals(singletonList("http://app/z"), cache.getKeysByTag("t1"));
+
+        TestBeans.destroy(cache);
+        caches.remove(cache);
+
+        // the tombstone was kept since segment 1 still contains x
+        final PackHtmlCache restarted = newCache();
+        assertNull(restarted.get("http://app/x"));
+        assertEquals(page(null, 500), restarted.get("http://app/y"));
+        assertEquals(page(null, 300), restarted.get("http://app/w"));
+        assertEquals(z, restarted.get("http://app/z"));
+        assertEquals(ContentEncodings.hash(z), restarted.getEntry("http://app/z").getHash());
+        assertEquals(singletonList("http://app/z"), restarted.getKeysByTag("t1"));
+    }
+
+    @Test
+    public void keysByPrefixAndTag() {
+        final PackHtmlCache cache = newCache();
+        cache.put("http://app/products/1", page("product,category-1", 10));
+        cache.put("http://app/products/2", page("product,category-2", 10));
+        cache.put("http://app/about", page(null, 10));
+        assertEquals(asList("http://app/products/1", "http://app/products/2"), sorted(cache.getKeysByPrefix("http://app/products/")));
+        assertEquals(asList("http://app/products/1", "http://app/products/2"), sorted(cache.getKeysByTag("product")));
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByTag("category-2")));
+        assertTrue(cache.getKeysByTag("missing").isEmpty());
+
+        cache.put("http://app/products/2", page("category-3", 10));
+        assertEquals(singletonList("http://app/products/1"), sorted(cache.getKeysByTag("product")));
+        assertTrue(cache.getKeysByTag("category-2").isEmpty());
+        cache.invalidate("http://app/products/1");
+        assertEquals(singletonList("http://app/products/2"), sorted(cache.getKeysByPrefix("http://app/products/")));
+
+        // the index is rebuilt from the segments
+        TestBeans.destroy(cache);
+        final PackHtmlCache restarted = newCache();
+        assertEquals(asList("http://app/about", "http://app/products/2"), sorted(restarted.getKeysByPrefix("http://app/")));
+        assertEquals(singletonList("http://app/products/2"), sorted(restarted.getKeysByTag("category-3")));
+        assertTrue(restarted.getKeysByTag("product").isEmpty());
+    }
+
+    private static List<String> sorted(final Collection<String> keys) {
+        return keys.stream().sorted().collect(toList());
+    }
+
+    private String page(final String tag, final int length) {
+        final StringBuilder html = new StringBuilder("<html><head>");
+        if (tag != null) {
+            html.append("<meta name=\"website-rendering-tags\" content=\"").append(tag).append("\">");
+        }
+        html.append("</head><body>");
+        while (html.length() < length) {
+            html.append('.');
+        }
+        return html.append("</body></html>").toString();
+    }
+
+    private File singleSegment() {
+        final File[] segments = directory.listFiles((dir, name) -> name.endsWith(".segment"));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private long indexOf(final File file, final String value) throws IOException {
+        final String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        final int index = content.indexOf(value);
+        assertTrue(index > 0);
+        return index;
+    }
+
+    private PackHtmlCache newCache() {
+        final Map<String, Object> fields = new HashMap<>();
+        fields.put("contentEncodings", TestBeans.create(ContentEncodings.class, emptyMap()));
+        fields.put("pageTags", TestBeans.create(PageTags.class, emptyMap()));
+        final PackHtmlCache cache = TestBeans.create(PackHtmlCache.class, fields, TestBeans.configuration(
+                "rmannibucau.website.rendering.cache.directory", directory.getAbsolutePath(),
+                "rmannibucau.website.rendering.cache.pack.segmentSize", "1024"));
+        caches.add(cache);
+        return cache;
+    }
+}
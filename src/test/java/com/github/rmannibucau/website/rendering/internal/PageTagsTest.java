@@ -0,0 +1,61 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class PageTagsTest {
+    private final PageTags tags = TestBeans.create(PageTags.class, emptyMap());
+
+    @Test
+    public void extract() {
+        assertEquals(asList("product", "category-42"), new ArrayList<>(tags.extract("<html><head><title>p</title>" +
+                "<meta name=\"description\" content=\"a product\">" +
+                "<meta name=\"website-rendering-tags\" content=\" product, ,category-42,product \">" +
+                "</head><body></body></html>")));
+    }
+
+    @Test
+    public void attributes() {
+        assertEquals(asList("a", "b"), new ArrayList<>(tags.extract(
+                "<head><META content='a,b' NAME='Website-Rendering-Tags'/></head>"))); // any order, quote and case
+        assertEquals(asList("a"), new ArrayList<>(tags.extract("<head><meta name = \"website-rendering-tags\" data-name=\"x\" content=\"a\"></head>"))); // not data-name
+    }
+
+    @Test
+    public void none() {
+        assertTrue(tags.extract("<html><head></head><body>no tags</body></html>").isEmpty());
+        assertTrue(tags.extract("<head><meta name=\"website-rendering-tags\"></head>").isEmpty()); // no content
+        assertTrue(tags.extract("<head><meta name=\"website-rendering-tags\" content=\" , \"></head>").isEmpty());
+        assertTrue(tags.extract("").isEmpty());
+    }
+
+    @Test
+    public void onlyInHead() {
+        assertTrue(tags.extract("<html><head></head><body>" +
+                "<pre><meta name=\"website-rendering-tags\" content=\"forged\"></pre></body></html>").isEmpty());
+        // a fragment without head is searched entirely
+        assertEquals(asList("a"), new ArrayList<>(tags.extract("<meta name=\"website-rendering-tags\" content=\"a\">")));
+    }
+
+    @Test
+    public void customMeta() {
+        final PageTags custom = TestBeans.create(PageTags.class, emptyMap(),
+                TestBeans.configuration("rmannibucau.website.rendering.cache.tags.meta", "cache-tags"));
+        assertEquals(asList("x"), new ArrayList<>(custom.extract("<head><meta name=\"cache-tags\" content=\"x\"></head>")));
+        assertTrue(custom.extract("<head><meta name=\"website-rendering-tags\" content=\"x\"></head>").isEmpty());
+    }
+
+    @Test
+    public void joinAndSplit() {
+        assertEquals("a,b", PageTags.join(asList("a", "b")));
+        assertEquals(asList("a", "b"), new ArrayList<>(PageTags.split("a,,b,a")));
+        assertTrue(PageTags.split("").isEmpty());
+        assertTrue(PageTags.split(null).isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// what PhantomJS loads for a page and when it captures it, the server records the requested paths
+public class PhantomJsWebRendererLoadingTest {
+    private static final Map<String, String> LATE_SCRIPTS = new HashMap<>();
+
+    static { // each page renders its content after the load event
+        final String render = "document.body.appendChild(document.createElement('div')).id = 'ready';" +
+                "document.getElementById('ready').textContent = 'rendered late';";
+        LATE_SCRIPTS.put("dom", "setTimeout(function () {" + render + "}, 1000);");
+        LATE_SCRIPTS.put("flag", "setTimeout(function () {" + render + "}, 500);" +
+                "setTimeout(function () { document.getElementById('ready').textContent = 'rendered later'; window.renderComplete = true; }, 1000);");
+        LATE_SCRIPTS.put("xhr", "var xhr = new XMLHttpRequest();" +
+                "xhr.onload = function () { document.body.appendChild(document.createElement('div')).textContent = xhr.responseText; };" +
+                "setTimeout(function () { xhr.open('GET', '/slow'); xhr.send(); }, 100);");
+    }
+
+    private final Collection<PhantomJsWebRenderer> renderers = new ArrayList<>();
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+    private ExecutorService serverThreads;
+    private HttpServer server;
+    private String base;
+
+    @Before
+    public void init() throws IOException {
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            requested.add(path);
+            if (path.equals("/slow")) { // answers after the load event of the page
+                try {
+                    MILLISECONDS.sleep(1000);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, "text/plain", "slow data");
+            } else if (path.startsWith("/late/")) {
+                respond(exchange, "text/html", "<!DOCTYPE html><html><head><title>late</title></head><body><script>" +
+                        LATE_SCRIPTS.get(path.substring("/late/".length())) + "</script></body></html>");
+            } else if (path.endsWith(".js")) {
+                respond(exchange, "application/javascript",
+                        "document.body.appendChild(document.createElement('p')).textContent = '" + path + " loaded';");
+            } else if (path.endsWith(".css")) {
+                respond(exchange, "text/css", "h1 { color: red; }");
+            } else if (path.endsWith(".png")) {
+                respond(exchange, "image/png", "");
+            } else {
+                respond(exchange, "text/html", "<!DOCTYPE html><html><head><title>test</title>" +
+                        "<link rel=\"stylesheet\" href=\"/style.css\"></head><body><h1>Resources</h1>" +
+                        "<img src=\"/image.png\">" +
+                        "<script src=\"/tracker.js\"></script>" +
+                        "<script src=\"http://127.0.0.1:" + server.getAddress().getPort() + "/external.js\"></script>" +
+                        "<script src=\"/app.js\"></script>" +
+                        "</body></html>");
+            }
+        });
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void destroy() {
+        renderers.forEach(TestBeans::destroy);
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void deniedResourcesAreNotRequested() {
+        final String html = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.resources.deny", "/tracker\\.js$",
+                "rmannibucau.website.rendering.phantomjs.resources.blockedTypes", "images, stylesheets").capture(base + "/page");
+        assertTrue(html, html.contains("<h1>Resources</h1>"));
+        assertTrue(html, html.contains("<p>/app.js loaded</p>"));
+        assertFalse(html, html.contains("/tracker.js loaded"));
+        assertTrue(requested.toString(), requested.contains("/page"));
+        assertTrue(requested.toString(), requested.contains("/app.js"));
+        assertTrue(requested.toString(), requested.contains("/external.js"));
+        assertFalse(requested.toString(), requested.contains("/tracker.js"));
+        assertFalse(requested.toString(), requested.contains("/image.png"));
+        assertFalse(requested.toString(), requested.contains("/style.css"));
+    }
+
+    @Test
+    public void onlyAllowedResourcesAreRequested() {
+        final String html = newRenderer("rmannibucau.website.rendering.phantomjs.resources.allow", "^" + base.replace(".", "\\.") + "/").capture(base + "/page");
+        assertTrue(html, html.contains("<p>/app.js loaded</p>"));
+        assertTrue(requested.toString(), requested.contains("/tracker.js"));
+        assertTrue(requested.toString(), requested.contains("/style.css"));
+        assertFalse(requested.toString(), requested.contains("/external.js")); // another host
+    }
+
+    @Test
+    public void everythingIsRequestedByDefault() {
+        final String html = newRenderer().capture(base + "/page");
+        assertTrue(html, html.contains("<p>/tracker.js loaded</p>"));
+        assertTrue(requested.toString(), requested.contains("/image.png"));
+        assertTrue(requested.toString(), requested.contains("/style.css"));
+        assertTrue(requested.toString(), requested.contains("/external.js"));
+    }
+
+    @Test
+    public void loadDoesNotWait() {
+        final String html = newRenderer().capture(base + "/late/dom");
+        assertFalse(html, html.contains("rendered late"));
+    }
+
+    @Test
+    public void selectorReadiness() {
+        final String html = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.readiness", "selector",
+                "rmannibucau.website.rendering.phantomjs.readiness.selector", "#ready").capture(base + "/late/dom");
+        assertTrue(html, html.contains("<div id=\"ready\">rendered late</div>"));
+    }
+
+    @Test
+    public void flagReadiness() {
+        final String html = newRenderer("rmannibucau.website.rendering.phantomjs.readiness", "flag").capture(base + "/late/flag");
+        assertTrue(html, html.contains("rendered later")); // the element exists before, only the flag says it is complete
+    }
+
+    @Test
+    public void networkIdleReadiness() {
+        final String html = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.readiness", "network-idle",
+                "rmannibucau.website.rendering.phantomjs.readiness.networkIdle", "300").capture(base + "/late/xhr");
+        assertTrue(html, html.contains("<div>slow data</div>"));
+        assertTrue(requested.toString(), requested.contains("/slow"));
+    }
+
+    @Test
+    public void readinessTimeout() {
+        final PhantomJsWebRenderer renderer = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.readiness", "selector",
+                "rmannibucau.website.rendering.phantomjs.readiness.selector", "#never",
+                "rmannibucau.website.rendering.phantomjs.readiness.timeout", "500");
+        final long start = System.nanoTime();
+        final String html = renderer.capture(base + "/late/dom");
+        assertTrue(System.nanoTime() - start < SECONDS.toNanos(5));
+        assertTrue(html, html.contains("<title>late</title>")); // captured anyway
+    }
+
+    private void respond(final HttpExchange exchange, final String contentType, final String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+        exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private PhantomJsWebRenderer newRenderer(final String... configuration) {
+        final PhantomJsWebRenderer renderer = TestBeans.create(PhantomJsWebRenderer.class,
+                singletonMap("metrics", TestBeans.metrics()), TestBeans.configuration(configuration));
+        renderers.add(renderer);
+        return renderer;
+    }
+}
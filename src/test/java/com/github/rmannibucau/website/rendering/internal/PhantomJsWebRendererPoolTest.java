@@ -0,0 +1,274 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.phantomjs.PhantomJSDriver;
+import org.openqa.selenium.remote.RemoteWebDriver;
+
+// PhantomJS processes with two pages (driver sessions) each unless a test configures it, the rest keeps its defaults
+public class PhantomJsWebRendererPoolTest {
+    private final Collection<PhantomJsWebRenderer> renderers = new ArrayList<>();
+    private final List<String> cookies = new CopyOnWriteArrayList<>();
+    private final CountDownLatch concurrentRequests = new CountDownLatch(2);
+    private final CountDownLatch slowScriptRequested = new CountDownLatch(1);
+    private final CountDownLatch slowScriptReleased = new CountDownLatch(1);
+    private RenderingMetrics metrics;
+    private ExecutorService serverThreads;
+    private HttpServer server;
+    private String base;
+
+    @Before
+    public void init() throws IOException {
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/page", exchange -> respond(exchange, "<h1>" + exchange.getRequestURI().getQuery() + "</h1>"));
+        server.createContext("/concurrent", exchange -> { // only answers "true" if both requests are in flight together
+            concurrentRequests.countDown();
+            boolean concurrent;
+            try {
+                concurrent = concurrentRequests.await(10, SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                concurrent = false;
+            }
+            respond(exchange, "<p>" + concurrent + "</p>");
+        });
+        server.createContext("/storage", exchange -> {
+            cookies.add(String.valueOf(exchange.getRequestHeaders().getFirst("Cookie")));
+            respond(exchange, "<p id=\"state\"></p><script>" +
+                    "document.getElementById('state').textContent = 'storage=' + (window.localStorage.getItem('visited') || 'none')" +
+                    " + ',cookie=' + (document.cookie.indexOf('visited=') >= 0);" +
+                    "window.localStorage.setItem('visited', 'yes');" +
+                    "document.cookie = 'visited=yes; path=/';" +
+                    "</script>");
+        });
+        server.createContext("/slow-page", exchange -> respond(exchange, "<p id=\"state\"></p>" +
+                "<script>document.cookie = 'slow=yes; path=/';</script>" +
+                "<script src=\"/slow.js\"></script>" + // delays the load event until the test releases it
+                "<script>document.getElementById('state').textContent = 'cookie=' + (document.cookie.indexOf('slow=yes') >= 0);</script>"));
+        server.createContext("/slow.js", exchange -> {
+            cookies.add(String.valueOf(exchange.getRequestHeaders().getFirst("Cookie")));
+            slowScriptRequested.countDown();
+            try {
+                slowScriptReleased.await(30, SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] script = "var slowLoaded = true;".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/javascript");
+            exchange.sendResponseHeaders(200, script.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(script);
+            }
+        });
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void destroy() {
+        renderers.forEach(TestBeans::destroy);
+        if (server != null) {
+            server.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentCaptures() throws Exception {
+        final PhantomJsWebRenderer renderer = newRenderer();
+        final CompletableFuture<String> first = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        final CompletableFuture<String> second = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        CompletableFuture.allOf(first, second).get(1, MINUTES);
+        assertTrue(first.get(), first.get().contains("<p>true</p>"));
+        assertTrue(second.get(), second.get().contains("<p>true</p>"));
+
+        // more captures than pages, the extra ones wait for a page of the single instance
+        final List<CompletableFuture<String>> captures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            captures.add(renderer.captureAsync(base + "/page?" + i).toCompletableFuture());
+        }
+        CompletableFuture.allOf(captures.toArray(new CompletableFuture<?>[0])).get(1, MINUTES);
+        for (int i = 0; i < captures.size(); i++) {
+            assertTrue(captures.get(i).get(), captures.get(i).get().contains("<h1>" + i + "</h1>"));
+        }
+        assertEquals(1, metrics.snapshot().get("phantomjs.instances").intValue());
+    }
+
+    @Test
+    public void recycling() {
+        final PhantomJsWebRenderer renderer = newRenderer("rmannibucau.website.rendering.phantomjs.instances.maxRenders", "4");
+
+        final Set<String> firstSessions = new HashSet<>();
+        for (int i = 0; i < 4; i++) { // the recycling counts the renders of both pages
+            firstSessions.add(sessionId(renderer));
+        }
+        assertTrue(firstSessions.toString(), firstSessions.size() <= 2);
+
+        final Set<String> secondSessions = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            secondSessions.add(sessionId(renderer));
+        }
+        assertTrue(secondSessions.toString(), secondSessions.size() <= 2);
+        secondSessions.forEach(session -> assertFalse(session, firstSessions.contains(session)));
+        assertEquals(1, metrics.snapshot().get("phantomjs.instances").intValue());
+
+        final String html = renderer.capture(base + "/page?recycled");
+        assertTrue(html, html.contains("<h1>recycled</h1>"));
+    }
+
+    @Test
+    public void resetBetweenRenders() {
+        final PhantomJsWebRenderer renderer = newRenderer();
+        for (int i = 0; i < 4; i++) { // sequential renders go through both pages of the same process
+            final String html = renderer.capture(base + "/storage");
+            assertTrue(html, html.contains("storage=none,cookie=false"));
+        }
+        assertEquals(4, cookies.size());
+        cookies.forEach(cookie -> assertEquals("null", cookie));
+    }
+
+    @Test
+    public void concurrentRendersKeepTheirState() throws Exception {
+        final PhantomJsWebRenderer renderer = newRenderer();
+        final CompletableFuture<String> slow = renderer.captureAsync(base + "/slow-page").toCompletableFuture();
+        assertTrue(slowScriptRequested.await(1, MINUTES)); // the cookie of the slow page is set
+
+        // completes on the other page of the process while the slow page renders
+        final String html = renderer.capture(base + "/page?fast");
+        assertTrue(html, html.contains("<h1>fast</h1>"));
+        MILLISECONDS.sleep(1000); // let the fast page be reset
+        slowScriptReleased.countDown();
+
+        final String slowHtml = slow.get(1, MINUTES);
+        assertTrue(slowHtml, slowHtml.contains("cookie=true")); // not cleared by the reset of the fast page
+        assertEquals("slow=yes", cookies.get(0));
+
+        // the last rendering cleared the state
+        final String after = renderer.capture(base + "/storage");
+        assertTrue(after, after.contains("storage=none,cookie=false"));
+        assertEquals("null", cookies.get(cookies.size() - 1));
+    }
+
+    @Test
+    public void elasticGrowth() throws Exception {
+        final PhantomJsWebRenderer renderer = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.instances.min", "1",
+                "rmannibucau.website.rendering.phantomjs.instances.max", "2",
+                "rmannibucau.website.rendering.phantomjs.instances.pages", "1");
+        assertEquals(1, metrics.snapshot().get("phantomjs.instances").intValue());
+
+        // the second capture can only run concurrently on a second instance
+        final CompletableFuture<String> first = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        final CompletableFuture<String> second = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        CompletableFuture.allOf(first, second).get(1, MINUTES);
+        assertTrue(first.get(), first.get().contains("<p>true</p>"));
+        assertTrue(second.get(), second.get().contains("<p>true</p>"));
+        assertEquals(2, metrics.snapshot().get("phantomjs.instances").intValue());
+
+        // never above the maximum
+        final List<CompletableFuture<String>> captures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            captures.add(renderer.captureAsync(base + "/page?" + i).toCompletableFuture());
+        }
+        CompletableFuture.allOf(captures.toArray(new CompletableFuture<?>[0])).get(1, MINUTES);
+        assertEquals(2, metrics.snapshot().get("phantomjs.instances").intValue());
+    }
+
+    @Test
+    public void idleRetirement() throws Exception {
+        final PhantomJsWebRenderer renderer = newRenderer(
+                "rmannibucau.website.rendering.phantomjs.instances.min", "1",
+                "rmannibucau.website.rendering.phantomjs.instances.max", "2",
+                "rmannibucau.website.rendering.phantomjs.instances.pages", "1",
+                "rmannibucau.website.rendering.phantomjs.instances.idleTimeout", "1000");
+        final CompletableFuture<String> first = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        final CompletableFuture<String> second = renderer.captureAsync(base + "/concurrent").toCompletableFuture();
+        CompletableFuture.allOf(first, second).get(1, MINUTES);
+        assertEquals(2, metrics.snapshot().get("phantomjs.instances").intValue());
+
+        awaitInstances(1); // the extra instance is stopped, the minimum is kept
+        MILLISECONDS.sleep(3000);
+        assertEquals(1, metrics.snapshot().get("phantomjs.instances").intValue());
+        final String html = renderer.capture(base + "/page?idle");
+        assertTrue(html, html.contains("<h1>idle</h1>"));
+    }
+
+    @Test
+    public void deadInstanceIsReplaced() {
+        final PhantomJsWebRenderer renderer = newRenderer("rmannibucau.website.rendering.phantomjs.instances.pages", "1");
+        final String before = sessionId(renderer);
+        try {
+            renderer.withDriver(PhantomJSDriver.class, driver -> driver.executePhantomJS("phantom.exit();"));
+        } catch (final RuntimeException re) {
+            // expected, the process can exit before answering
+        }
+
+        final String html = renderer.capture(base + "/page?replaced");
+        assertTrue(html, html.contains("<h1>replaced</h1>"));
+        assertFalse(before.equals(sessionId(renderer)));
+        assertEquals(1, metrics.snapshot().get("phantomjs.instances").intValue());
+    }
+
+    private void awaitInstances(final int expected) throws InterruptedException {
+        final long end = System.nanoTime() + MINUTES.toNanos(1);
+        while (metrics.snapshot().get("phantomjs.instances").intValue() != expected && System.nanoTime() - end < 0) {
+            MILLISECONDS.sleep(100);
+        }
+        assertEquals(expected, metrics.snapshot().get("phantomjs.instances").intValue());
+    }
+
+    private String sessionId(final PhantomJsWebRenderer renderer) {
+        final List<String> id = new ArrayList<>();
+        renderer.withDriver(RemoteWebDriver.class, driver -> id.add(driver.getSessionId().toString()));
+        return id.get(0);
+    }
+
+    private void respond(final HttpExchange exchange, final String body) throws IOException {
+        final byte[] html = ("<!DOCTYPE html><html><head><title>test</title></head><body>" + body + "</body></html>")
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, html.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(html);
+        }
+    }
+
+    private PhantomJsWebRenderer newRenderer(final String... configuration) {
+        final Map<String, String> properties = TestBeans.configuration(configuration);
+        properties.putIfAbsent("rmannibucau.website.rendering.phantomjs.instances.pages", "2");
+        metrics = TestBeans.metrics();
+        final PhantomJsWebRenderer renderer = TestBeans.create(PhantomJsWebRenderer.class, singletonMap("metrics", metrics), properties);
+        renderers.add(renderer);
+        return renderer;
+    }
+}
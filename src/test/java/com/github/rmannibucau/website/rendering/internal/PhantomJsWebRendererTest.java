@@ -1,8 +1,12 @@
 package com.github.rmannibucau.website.rendering.internal;
 
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Map;
 import java.util.stream.Stream;
 
 import javax.inject.Inject;
@@ -42,6 +46,19 @@ public class PhantomJsWebRendererTest {
         assertTrue(capture, capture.contains("<h1>HTML</h1>"));
     }
 
+    @Test
+    public void renderAsync() throws Exception {
+        final String base = "http://localhost:" + RULE.getConfiguration().getHttpPort();
+        final String capture = renderer.captureAsync(base + "/foo.html").toCompletableFuture().get(1, MINUTES);
+        assertTrue(capture, capture.contains("<h1>HTML</h1>"));
+
+        final Map<String, String> captures = renderer.captureAll(asList(base + "/foo.html", base + "/cached/index.html"))
+                .toCompletableFuture().get(1, MINUTES);
+        assertEquals(2, captures.size());
+        assertTrue(captures.get(base + "/foo.html").contains("<h1>HTML</h1>"));
+        assertTrue(captures.get(base + "/cached/index.html").contains("<h1>Index</h1>"));
+    }
+
     @Test
     public void seleniumAPIs() {
         Stream.of(WebDriver.class, TakesScreenshot.class, JavascriptExecutor.class)
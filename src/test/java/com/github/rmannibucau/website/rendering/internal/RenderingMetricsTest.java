@@ -0,0 +1,42 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.inject.Inject;
+import javax.management.ObjectName;
+
+import org.apache.meecrowave.junit.InjectRule;
+import org.apache.meecrowave.junit.MeecrowaveRule;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+// the MicroProfile Metrics API is in the test classpath without any implementation, the deployment must still succeed
+public class RenderingMetricsTest {
+    @ClassRule
+    public static final MeecrowaveRule RULE = new MeecrowaveRule();
+
+    @Rule
+    public final InjectRule inject = new InjectRule(this);
+
+    @Inject
+    private RenderingMetrics metrics;
+
+    @Test
+    public void counterAndJmx() throws Exception {
+        metrics.counter("test.counter").add(3);
+        assertEquals(3L, metrics.snapshot().get("test.counter"));
+        assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("com.github.rmannibucau.website.rendering:type=Metrics"), "test.counter"));
+    }
+
+    @Test
+    public void histogram() {
+        metrics.histogram("test.histogram").record(2_000_000);
+        assertEquals(1L, metrics.snapshot().get("test.histogram.count"));
+        assertTrue(metrics.snapshot().get("test.histogram.max").doubleValue() >= 2);
+    }
+}
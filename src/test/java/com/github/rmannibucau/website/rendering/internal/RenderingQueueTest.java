@@ -0,0 +1,104 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+
+public class RenderingQueueTest {
+    private final Collection<String> shed = new ArrayList<>();
+
+    @Test
+    public void priorityOrder() {
+        final RenderingQueue queue = new RenderingQueue(10, RenderingQueue.Shedding.REJECT);
+        final RenderingQueue.Task low = task("low", 1, 1);
+        final RenderingQueue.Task high = task("high", 5, 2);
+        final RenderingQueue.Task sameHighLater = task("sameHighLater", 5, 3);
+        assertTrue(queue.offer(low));
+        assertTrue(queue.offer(sameHighLater));
+        assertTrue(queue.offer(high));
+        assertSame(high, queue.poll());
+        assertSame(sameHighLater, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void reject() {
+        final RenderingQueue queue = new RenderingQueue(1, RenderingQueue.Shedding.REJECT);
+        assertTrue(queue.offer(task("first", 0, 1)));
+        assertFalse(queue.offer(task("second", 10, 2)));
+        assertEquals(1, queue.size());
+        assertEquals(0, queue.remainingCapacity());
+        assertTrue(shed.isEmpty());
+    }
+
+    @Test
+    public void dropOldest() {
+        final RenderingQueue queue = new RenderingQueue(2, RenderingQueue.Shedding.DROP_OLDEST);
+        assertTrue(queue.offer(task("first", 10, 1)));
+        assertTrue(queue.offer(task("second", 0, 2)));
+        assertTrue(queue.offer(task("third", 0, 3)));
+        assertEquals(2, queue.size());
+        assertEquals("first", shed.iterator().next());
+    }
+
+    @Test
+    public void dropOldestIgnoresPolledTasks() {
+        final RenderingQueue queue = new RenderingQueue(2, RenderingQueue.Shedding.DROP_OLDEST);
+        final RenderingQueue.Task first = task("first", 10, 1);
+        final RenderingQueue.Task second = task("second", 0, 2);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertSame(first, queue.poll());
+        assertTrue(queue.offer(task("third", 0, 3)));
+        assertTrue(shed.isEmpty());
+        assertTrue(queue.offer(task("fourth", 0, 4)));
+        assertEquals("second", shed.iterator().next());
+        assertEquals(2, queue.size());
+        queue.drain();
+        assertTrue(queue.offer(task("fifth", 0, 5)));
+        assertEquals(1, shed.size());
+    }
+
+    @Test
+    public void dropLowestPriority() {
+        final RenderingQueue queue = new RenderingQueue(2, RenderingQueue.Shedding.DROP_LOWEST_PRIORITY);
+        final RenderingQueue.Task first = task("first", 10, 1);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(task("second", 1, 2)));
+        assertFalse(queue.offer(task("ignored", 1, 3))); // not better than the lowest one
+        final RenderingQueue.Task third = task("third", 5, 4);
+        assertTrue(queue.offer(third));
+        assertEquals("second", shed.iterator().next());
+        assertSame(first, queue.poll());
+        assertSame(third, queue.poll());
+    }
+
+    @Test
+    public void sheddingNames() {
+        assertEquals(RenderingQueue.Shedding.DROP_OLDEST, RenderingQueue.Shedding.from("drop-oldest"));
+        assertEquals(RenderingQueue.Shedding.DROP_LOWEST_PRIORITY, RenderingQueue.Shedding.from(" drop-lowest-priority"));
+        assertEquals(RenderingQueue.Shedding.REJECT, RenderingQueue.Shedding.from("reject"));
+    }
+
+    private RenderingQueue.Task task(final String name, final long priority, final long sequence) {
+        return new RenderingQueue.Task(() -> {}, priority, sequence) {
+            @Override
+            protected void onShed() {
+                shed.add(name);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+}
@@ -15,6 +15,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
 
 import com.github.rmannibucau.website.rendering.spi.HtmlCache;
 
@@ -27,6 +28,7 @@ import org.junit.rules.TestRule;
 import org.junit.runners.model.Statement;
 
 public class ServerRenderingFilterTest {
+    private static final long TTL = 3000;
     private static final MeecrowaveRule SERVER = new MeecrowaveRule();
 
     @ClassRule
@@ -34,10 +36,12 @@ public class ServerRenderingFilterTest {
         @Override
         public void evaluate() throws Throwable {
             System.setProperty("rmannibucau.website.rendering.web.urlPatterns", "/cached/*");
+            System.setProperty("rmannibucau.website.rendering.cache.ttl", Long.toString(TTL));
             try {
                 base.evaluate();
             } finally {
                 System.clearProperty("rmannibucau.website.rendering.web.urlPatterns");
+                System.clearProperty("rmannibucau.website.rendering.cache.ttl");
             }
         }
     }).around(SERVER);
@@ -71,6 +75,56 @@ public class ServerRenderingFilterTest {
         assertFalse(cache.invalidate(base() + "/foo.html"));
     }
 
+    @Test
+    public void conditional() {
+        final String key = base() + "/cached/conditional.html";
+        assertTrue(cache.put(key, "<html><body>conditional</body></html>"));
+        try {
+            withClient(target -> {
+                final Response page = target.path("/cached/conditional.html").request().get();
+                assertEquals(HttpServletResponse.SC_OK, page.getStatus());
+                final String etag = page.getHeaderString("ETag");
+                assertNotNull(etag);
+                assertNotNull(page.getHeaderString("Last-Modified"));
+                assertEquals("<html><body>conditional</body></html>", page.readEntity(String.class));
+
+                final Response notModified = target.path("/cached/conditional.html").request()
+                        .header("If-None-Match", etag).get();
+                assertEquals(HttpServletResponse.SC_NOT_MODIFIED, notModified.getStatus());
+                assertEquals(etag, notModified.getHeaderString("ETag"));
+
+                assertEquals(HttpServletResponse.SC_OK, target.path("/cached/conditional.html").request()
+                        .header("If-None-Match", "\"other\"").get().getStatus());
+                assertEquals(HttpServletResponse.SC_NOT_MODIFIED, target.path("/cached/conditional.html").request()
+                        .header("If-Modified-Since", page.getHeaderString("Last-Modified")).get().getStatus());
+            });
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws InterruptedException {
+        final String key = base() + "/cached/stale.html";
+        assertTrue(cache.put(key, "<html><body>stale</body></html>"));
+        try {
+            sleep(TTL + 500);
+            withClient(target -> { // the stale page is served right away and rendered again in background
+                final Response page = target.path("/cached/stale.html").request().get();
+                assertEquals(HttpServletResponse.SC_OK, page.getStatus());
+                assertEquals("<html><body>stale</body></html>", page.readEntity(String.class));
+            });
+            retry(10).accept(() -> {
+                final String value = cache.get(key);
+                assertNotNull(value);
+                assertTrue(value, value.contains("<h1>Fresh</h1>"));
+            });
+            withClient(target -> assertTrue(target.path("/cached/stale.html").request().get(String.class).contains("<h1>Fresh</h1>")));
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
     private Consumer<Runnable> retry(final int count) {
         return task -> {
             AssertionError error = null;
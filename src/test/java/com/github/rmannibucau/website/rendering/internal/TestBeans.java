@@ -0,0 +1,179 @@
+package com.github.rmannibucau.website.rendering.internal;
+
+import static java.util.Collections.emptyIterator;
+import static java.util.Collections.emptyMap;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterators;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.inject.Instance;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Creates beans without a container: the injected fields are set by name and the lifecycle methods are called.
+ * The configuration is set by property name like the system properties of the container tests, the properties
+ * not set get the default value of their {@code @ConfigProperty} and the {@code Instance} not set are unresolvable.
+ */
+final class TestBeans {
+    private TestBeans() {
+        // no-op
+    }
+
+    static <T> T create(final Class<T> type, final Map<String, ?> fields) {
+        return create(type, fields, emptyMap());
+    }
+
+    static <T> T create(final Class<T> type, final Map<String, ?> fields, final Map<String, String> configuration) {
+        try {
+            final T instance = type.getDeclaredConstructor().newInstance();
+            final Set<String> unknown = new HashSet<>(configuration.keySet());
+            Class<?> current = type;
+            while (current != null) {
+                for (final Field declared : current.getDeclaredFields()) {
+                    if (Modifier.isStatic(declared.getModifiers()) || fields.containsKey(declared.getName())) {
+                        continue;
+                    }
+                    final ConfigProperty property = declared.getAnnotation(ConfigProperty.class);
+                    if (property != null) {
+                        unknown.remove(property.name());
+                        set(instance, declared, toValue(declared, property.name(), configuration.getOrDefault(property.name(), property.defaultValue())));
+                    } else if (declared.getType() == Instance.class) {
+                        set(instance, declared, unresolvable());
+                    }
+                }
+                current = current.getSuperclass();
+            }
+            if (!unknown.isEmpty()) {
+                throw new IllegalArgumentException("No " + unknown + " configuration in " + type.getName());
+            }
+            for (final Map.Entry<String, ?> field : fields.entrySet()) {
+                set(instance, findField(type, field.getKey()), field.getValue());
+            }
+            invoke(instance, PostConstruct.class);
+            return instance;
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void destroy(final Object instance) {
+        invoke(instance, PreDestroy.class);
+    }
+
+    /**
+     * @param keysAndValues the configuration properties and their values, alternated.
+     * @return the configuration.
+     */
+    static Map<String, String> configuration(final String... keysAndValues) {
+        final Map<String, String> configuration = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            configuration.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return configuration;
+    }
+
+    // not registered in JMX nor MicroProfile Metrics, several tests can create some
+    static RenderingMetrics metrics() {
+        return create(RenderingMetrics.class, emptyMap(), configuration(
+                "rmannibucau.website.rendering.metrics.jmx", "false",
+                "rmannibucau.website.rendering.metrics.microprofile", "false"));
+    }
+
+    // isResolvable() is false and it has no bean
+    static Instance<?> unresolvable() {
+        return Instance.class.cast(Proxy.newProxyInstance(TestBeans.class.getClassLoader(), new Class<?>[]{Instance.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isResolvable":
+                        case "isAmbiguous":
+                            return false;
+                        case "isUnsatisfied":
+                            return true;
+                        case "iterator":
+                            return emptyIterator();
+                        case "spliterator":
+                            return Spliterators.emptySpliterator();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }));
+    }
+
+    private static Object toValue(final Field field, final String name, final String value) {
+        if (field.getType() == Optional.class) {
+            final Type parameter = ParameterizedType.class.cast(field.getGenericType()).getActualTypeArguments()[0];
+            return ConfigProperty.UNCONFIGURED_VALUE.equals(value) ? Optional.empty() : Optional.of(convert(Class.class.cast(parameter), value));
+        }
+        if (ConfigProperty.UNCONFIGURED_VALUE.equals(value)) {
+            throw new IllegalArgumentException("No value for " + name + " (" + field + ")");
+        }
+        return convert(field.getType(), value);
+    }
+
+    private static Object convert(final Class<?> type, final String value) {
+        if (type == String.class) {
+            return value;
+        }
+        if (type == Integer.class || type == int.class) {
+            return Integer.valueOf(value.trim());
+        }
+        if (type == Long.class || type == long.class) {
+            return Long.valueOf(value.trim());
+        }
+        if (type == Double.class || type == double.class) {
+            return Double.valueOf(value.trim());
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return Boolean.valueOf(value.trim());
+        }
+        throw new IllegalArgumentException("Unsupported configuration type: " + type);
+    }
+
+    private static void set(final Object instance, final Field field, final Object value) throws IllegalAccessException {
+        field.setAccessible(true);
+        field.set(instance, value);
+    }
+
+    private static void invoke(final Object instance, final Class<? extends Annotation> lifecycle) {
+        for (final Method method : instance.getClass().getDeclaredMethods()) {
+            if (method.isAnnotationPresent(lifecycle)) {
+                method.setAccessible(true);
+                try {
+                    method.invoke(instance);
+                } catch (final IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                } catch (final InvocationTargetException e) {
+                    final Throwable cause = e.getTargetException();
+                    throw RuntimeException.class.isInstance(cause) ? RuntimeException.class.cast(cause) : new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+    private static Field findField(final Class<?> type, final String name) throws NoSuchFieldException {
+        Class<?> current = type;
+        while (current != null) {
+            try {
+                return current.getDeclaredField(name);
+            } catch (final NoSuchFieldException nsfe) {
+                current = current.getSuperclass();
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+}